@@ -0,0 +1,217 @@
+package org.apache.curator.framework.recipes.nodes;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consistent-hash ring over the members of a group. Every member is placed
+ * on the ring at a number of points proportional to its weight, and a key
+ * belongs to the member of the first point at or after the key's hash. When
+ * members join or leave only their own points are added or removed, so only
+ * the keys on those points move. The ring is a pair of sorted arrays that is
+ * replaced, never modified, so ownerOf is a binary search that takes no lock
+ * and allocates nothing
+ */
+public class ConsistentHashRing {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int virtualNodes;
+	private volatile Ring ring;
+
+	/**
+	 * Immutable state of the ring: point hashes in ascending order and the
+	 * member owning each point
+	 */
+	private static class Ring {
+		final long[] points;
+		final String[] owners;
+		final long version;
+
+		Ring(long[] points, String[] owners, long version) {
+			this.points = points;
+			this.owners = owners;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * @param member
+	 *            the member whose view of the group the ring follows
+	 * @param virtualNodes
+	 *            number of points of a member of weight 1
+	 */
+	public ConsistentHashRing(GroupMember member, int virtualNodes) {
+		this.virtualNodes = Math.max(1, virtualNodes);
+		this.ring = new Ring(new long[0], new String[0], -1);
+		rebuild(member.getMembershipView());
+		member.addMembershipListener(new MembershipListener() {
+			@Override
+			public void membershipChanged(MembershipDelta delta) {
+				apply(delta);
+			}
+		}, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		}, 10, TimeUnit.MILLISECONDS, 1000);
+		// Changes made before the listener was added are only in the view;
+		// deltas the view already covers are skipped
+		rebuild(member.getMembershipView());
+	}
+
+	/**
+	 * Return the member a key belongs to
+	 *
+	 * @param key
+	 *            key
+	 * @return member ID, or null if the group is empty
+	 */
+	public String ownerOf(String key) {
+		Ring current = ring;
+		int length = current.points.length;
+		if (length == 0) {
+			return null;
+		}
+		int index = Arrays.binarySearch(current.points, hash(key));
+		if (index < 0) {
+			index = -index - 1;
+		}
+		return current.owners[index == length ? 0 : index];
+	}
+
+	/**
+	 * @return number of points on the ring
+	 */
+	public int size() {
+		return ring.points.length;
+	}
+
+	/**
+	 * @return version of the membership view the ring reflects
+	 */
+	public long getVersion() {
+		return ring.version;
+	}
+
+	private synchronized void rebuild(MembershipView view) {
+		if (view.getVersion() > ring.version) {
+			update(view.getMembers(), Arrays.asList(ring.owners), view.getVersion());
+		}
+	}
+
+	private synchronized void apply(MembershipDelta delta) {
+		if (delta.getVersion() <= ring.version) {
+			return;
+		}
+		Map<String, byte[]> changed = new HashMap<String, byte[]>(delta.getAdded());
+		changed.putAll(delta.getUpdated());
+		update(changed, delta.getRemoved(), delta.getVersion());
+	}
+
+	/**
+	 * Remove the points of the changed and removed members and merge in the
+	 * new points of the changed ones
+	 */
+	private synchronized void update(Map<String, byte[]> changed, Collection<String> removed, long version) {
+		Ring old = ring;
+		Set<String> dropped = new HashSet<String>(removed);
+		dropped.addAll(changed.keySet());
+
+		int count = 0;
+		for (Map.Entry<String, byte[]> entry : changed.entrySet()) {
+			count += virtualNodes * weightOf(entry.getValue());
+		}
+		long[] addedPoints = new long[count];
+		String[] addedOwners = new String[count];
+		int n = 0;
+		for (Map.Entry<String, byte[]> entry : changed.entrySet()) {
+			int points = virtualNodes * weightOf(entry.getValue());
+			for (int i = 0; i < points; i++) {
+				addedPoints[n] = hash(entry.getKey() + "#" + i);
+				addedOwners[n] = entry.getKey();
+				n++;
+			}
+		}
+		sort(addedPoints, addedOwners);
+
+		long[] points = new long[old.points.length + count];
+		String[] owners = new String[points.length];
+		int i = 0, j = 0, k = 0;
+		while (i < old.points.length || j < count) {
+			if (i < old.points.length && dropped.contains(old.owners[i])) {
+				i++;
+			} else if (j == count || (i < old.points.length && old.points[i] <= addedPoints[j])) {
+				points[k] = old.points[i];
+				owners[k++] = old.owners[i++];
+			} else {
+				points[k] = addedPoints[j];
+				owners[k++] = addedOwners[j++];
+			}
+		}
+		ring = new Ring(Arrays.copyOf(points, k), Arrays.copyOf(owners, k), version);
+	}
+
+	/**
+	 * Weight of a member: its payload if that is a positive decimal number of
+	 * up to four digits, otherwise 1
+	 */
+	static int weightOf(byte[] payload) {
+		if (payload == null || payload.length == 0 || payload.length > 4) {
+			return 1;
+		}
+		try {
+			return Math.max(1, Integer.parseInt(new String(payload, UTF8).trim()));
+		} catch (NumberFormatException e) {
+			return 1;
+		}
+	}
+
+	/**
+	 * 64 bit hash of a string: FNV-1a over its characters, finished with
+	 * the MurmurHash3 mixer to spread the bits
+	 */
+	static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Sort points ascending, keeping each owner with its point
+	 */
+	private static void sort(long[] points, String[] owners) {
+		Integer[] order = new Integer[points.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		final long[] keys = points.clone();
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(keys[a], keys[b]);
+			}
+		});
+		String[] ownersCopy = owners.clone();
+		for (int i = 0; i < order.length; i++) {
+			points[i] = keys[order[i]];
+			owners[i] = ownersCopy[order[i]];
+		}
+	}
+}
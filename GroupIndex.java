@@ -0,0 +1,146 @@
+package org.apache.curator.framework.recipes.nodes;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.utils.ZKPaths;
+import java.io.Closeable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Index of the groups under a parent node by group name. Group nodes are
+ * created in protected mode, so their node names carry a 40 character
+ * prefix; it is stripped once per group when the cache reports the node, and
+ * lookups by name are then answered locally. The index follows groups being
+ * created and removed through a watch on the parent
+ */
+public class GroupIndex implements Closeable {
+	/**
+	 * Length of the prefix protected mode puts in front of a node name
+	 */
+	public static final int PROTECTED_PREFIX_LENGTH = 40;
+
+	private final String groupsPath;
+	private final PathChildrenCache cache;
+	private final ConcurrentHashMap<String, String> nodes = new ConcurrentHashMap<String, String>();
+	private final CountDownLatch initialized = new CountDownLatch(1);
+
+	/**
+	 * @param client
+	 *            client
+	 * @param groupsPath
+	 *            the parent node of the groups
+	 */
+	public GroupIndex(CuratorFramework client, String groupsPath) {
+		this.groupsPath = groupsPath;
+		cache = new PathChildrenCache(client, groupsPath, false);
+		cache.getListenable().addListener(new PathChildrenCacheListener() {
+			@Override
+			public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+				switch (event.getType()) {
+				case CHILD_ADDED: {
+					String node = ZKPaths.getNodeFromPath(event.getData().getPath());
+					nodes.putIfAbsent(nameOf(node), node);
+					break;
+				}
+				case CHILD_REMOVED: {
+					String node = ZKPaths.getNodeFromPath(event.getData().getPath());
+					if (nodes.remove(nameOf(node), node)) {
+						replace(nameOf(node));
+					}
+					break;
+				}
+				case INITIALIZED:
+					initialized.countDown();
+					break;
+				default:
+					break;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Start watching the groups and wait up to 30 seconds until the existing
+	 * ones are indexed
+	 */
+	public void start() throws Exception {
+		start(30, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Start watching the groups and wait until the existing ones are indexed
+	 *
+	 * @param timeout
+	 *            longest wait
+	 * @param unit
+	 *            unit of timeout
+	 * @throws TimeoutException
+	 *             if the groups could not be listed in time
+	 */
+	public void start(long timeout, TimeUnit unit) throws Exception {
+		cache.start(PathChildrenCache.StartMode.POST_INITIALIZED_EVENT);
+		if (!initialized.await(timeout, unit)) {
+			throw new TimeoutException("Groups under " + groupsPath + " not listed within " + timeout + " " + unit);
+		}
+	}
+
+	/**
+	 * After the node a name pointed at is removed, point the name at another
+	 * node of the same name if the cache still has one
+	 */
+	private void replace(String name) {
+		for (ChildData data : cache.getCurrentData()) {
+			String node = ZKPaths.getNodeFromPath(data.getPath());
+			if (nameOf(node).equals(name)) {
+				nodes.putIfAbsent(name, node);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Return the node name of a group
+	 *
+	 * @param name
+	 *            group name
+	 * @return node name under the groups node, or null if there is no such
+	 *         group
+	 */
+	public String nodeOf(String name) {
+		return nodes.get(name);
+	}
+
+	/**
+	 * @return names of the current groups
+	 */
+	public Set<String> names() {
+		return nodes.keySet();
+	}
+
+	/**
+	 * Given a protected node name, return the group name
+	 *
+	 * @param node
+	 *            node name
+	 * @return group name
+	 */
+	public static String nameOf(String node) {
+		return node.length() > PROTECTED_PREFIX_LENGTH ? node.substring(PROTECTED_PREFIX_LENGTH) : node;
+	}
+
+	/**
+	 * Stop watching the groups
+	 */
+	@Override
+	public void close() {
+		CloseableUtils.closeQuietly(cache);
+	}
+}
@@ -0,0 +1,330 @@
+package org.apache.curator.framework.recipes.nodes;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.utils.ThreadUtils;
+import org.apache.curator.utils.ZKPaths;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load generator for group membership. Members join one group at a fixed
+ * rate, then change their payload and leave.
+ * An observer watching the group records when each change becomes visible
+ * to the other members. Runs against a given ensemble or an in-process
+ * TestingServer and writes the latency distributions as JSON
+ */
+public class GroupLoadGenerator {
+	private final String connectString;
+	private final String groupPath;
+	private int members = 100;
+	private int rate = 100;
+	private int sessions = 1;
+	private long timeoutSeconds = 60;
+
+	private final Latencies join = new Latencies();
+	private final Latencies joinVisible = new Latencies();
+	private final Latencies updateVisible = new Latencies();
+	private final Latencies leaveVisible = new Latencies();
+
+	/**
+	 * Start times of the operations the observer has not seen yet, by member
+	 * ID
+	 */
+	private final ConcurrentHashMap<String, Long> joining = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentHashMap<String, Long> updating = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentHashMap<String, Long> leaving = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Recorded latencies of one kind of operation, with percentiles over all
+	 * samples
+	 */
+	static class Latencies {
+		private long[] samples = new long[64];
+		private int count;
+
+		synchronized void record(long nanos) {
+			if (count == samples.length) {
+				samples = Arrays.copyOf(samples, count * 2);
+			}
+			samples[count++] = nanos;
+		}
+
+		synchronized int count() {
+			return count;
+		}
+
+		/**
+		 * @param fraction
+		 *            between 0 and 1
+		 * @return latency in microseconds below which fraction of the samples
+		 *         fall
+		 */
+		synchronized long percentile(double fraction) {
+			if (count == 0) {
+				return 0;
+			}
+			long[] sorted = Arrays.copyOf(samples, count);
+			Arrays.sort(sorted);
+			int rank = (int) Math.ceil(fraction * count) - 1;
+			return sorted[Math.max(0, Math.min(count - 1, rank))] / 1000;
+		}
+
+		String toJson() {
+			return "{\"count\": " + count() + ", \"p50_us\": " + percentile(0.5) + ", \"p90_us\": "
+					+ percentile(0.9) + ", \"p99_us\": " + percentile(0.99) + ", \"p999_us\": " + percentile(0.999)
+					+ ", \"max_us\": " + percentile(1) + "}";
+		}
+	}
+
+	/**
+	 * @param connectString
+	 *            ZooKeeper connection string
+	 * @param groupPath
+	 *            the group the members join
+	 */
+	public GroupLoadGenerator(String connectString, String groupPath) {
+		this.connectString = connectString;
+		this.groupPath = groupPath;
+	}
+
+	/**
+	 * @param members
+	 *            number of members to drive
+	 * @return this
+	 */
+	public GroupLoadGenerator members(int members) {
+		this.members = members;
+		return this;
+	}
+
+	/**
+	 * @param rate
+	 *            joins, updates and leaves started per second
+	 * @return this
+	 */
+	public GroupLoadGenerator rate(int rate) {
+		this.rate = Math.max(1, rate);
+		return this;
+	}
+
+	/**
+	 * @param sessions
+	 *            number of shared ZooKeeper sessions the members are spread
+	 *            over
+	 * @return this
+	 */
+	public GroupLoadGenerator sessions(int sessions) {
+		this.sessions = Math.max(1, sessions);
+		return this;
+	}
+
+	/**
+	 * @param timeoutSeconds
+	 *            how long to wait for the observer to see each phase
+	 * @return this
+	 */
+	public GroupLoadGenerator timeout(long timeoutSeconds) {
+		this.timeoutSeconds = timeoutSeconds;
+		return this;
+	}
+
+	/**
+	 * Drive the members through joining, one payload update and leaving
+	 *
+	 * @return the results as a JSON object
+	 */
+	public String run() throws Exception {
+		CuratorFramework admin = SharedClients.acquire(connectString, sessions);
+		if (admin.checkExists().forPath(groupPath) == null) {
+			admin.create().creatingParentsIfNeeded().forPath(groupPath);
+		}
+		final CountDownLatch joined = new CountDownLatch(members);
+		final CountDownLatch updated = new CountDownLatch(members);
+		final CountDownLatch left = new CountDownLatch(members);
+		PathChildrenCache observer = new PathChildrenCache(admin, groupPath, true);
+		observer.getListenable().addListener(new PathChildrenCacheListener() {
+			@Override
+			public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+				long now = System.nanoTime();
+				switch (event.getType()) {
+				case CHILD_ADDED:
+					seen(joining, idOf(event), now, joinVisible, joined);
+					break;
+				case CHILD_UPDATED:
+					seen(updating, idOf(event), now, updateVisible, updated);
+					break;
+				case CHILD_REMOVED:
+					seen(leaving, idOf(event), now, leaveVisible, left);
+					break;
+				default:
+					break;
+				}
+			}
+		});
+		observer.start(PathChildrenCache.StartMode.BUILD_INITIAL_CACHE);
+
+		final GroupMember[] group = new GroupMember[members];
+		final CuratorFramework[] clients = new CuratorFramework[members];
+		ScheduledExecutorService timer = Executors
+				.newSingleThreadScheduledExecutor(ThreadUtils.newThreadFactory("GroupLoadGenerator-timer"));
+		ExecutorService pool = Executors.newCachedThreadPool(ThreadUtils.newThreadFactory("GroupLoadGenerator"));
+		int joinFailures, updateFailures, leaveFailures;
+		long started = System.nanoTime();
+		try {
+			joinFailures = phase(timer, pool, joining, joined, new Step() {
+				public void run(int i) throws Exception {
+					String id = "member" + i;
+					clients[i] = SharedClients.acquire(connectString, sessions);
+					long start = System.nanoTime();
+					joining.put(id, start);
+					group[i] = new GroupMember(clients[i], groupPath, id, ("payload" + i).getBytes());
+					group[i].start();
+					join.record(System.nanoTime() - start);
+				}
+			});
+			await(joined, "join");
+			updateFailures = phase(timer, pool, updating, updated, new Step() {
+				public void run(int i) throws Exception {
+					updating.put("member" + i, System.nanoTime());
+					group[i].setThisData(("update" + i).getBytes());
+				}
+			});
+			await(updated, "update");
+			leaveFailures = phase(timer, pool, leaving, left, new Step() {
+				public void run(int i) throws Exception {
+					leaving.put("member" + i, System.nanoTime());
+					group[i].close();
+					SharedClients.release(clients[i]);
+				}
+			});
+			await(left, "leave");
+		} finally {
+			timer.shutdown();
+			pool.shutdown();
+			CloseableUtils.closeQuietly(observer);
+			SharedClients.release(admin);
+		}
+		long elapsed = System.nanoTime() - started;
+
+		return "{\n  \"members\": " + members + ",\n  \"rate\": " + rate + ",\n  \"sessions\": " + sessions
+				+ ",\n  \"elapsed_ms\": " + elapsed / 1000000 + ",\n  \"failures\": {\"join\": " + joinFailures
+				+ ", \"update\": " + updateFailures + ", \"leave\": " + leaveFailures + "}"
+				+ ",\n  \"join\": " + join.toJson()
+				+ ",\n  \"join_visible\": " + joinVisible.toJson() + ",\n  \"update_visible\": "
+				+ updateVisible.toJson() + ",\n  \"leave_visible\": " + leaveVisible.toJson() + "\n}\n";
+	}
+
+	private interface Step {
+		void run(int i) throws Exception;
+	}
+
+	/**
+	 * Start step for every member, open loop at the configured rate, and wait
+	 * for all of them to return. The timer only hands the steps to the pool,
+	 * so threads are taken by the steps in flight, not by those still to
+	 * start. A member whose step fails is no longer waited for by the
+	 * observer
+	 *
+	 * @return number of members whose step failed
+	 */
+	private int phase(ScheduledExecutorService timer, final ExecutorService pool,
+			final ConcurrentHashMap<String, Long> pending, final CountDownLatch observed, final Step step)
+			throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(members);
+		final AtomicInteger failures = new AtomicInteger();
+		long interval = 1000000000L / rate;
+		for (int i = 0; i < members; i++) {
+			final int n = i;
+			final Runnable run = new Runnable() {
+				public void run() {
+					try {
+						step.run(n);
+					} catch (Exception e) {
+						System.out.println("member" + n + ": " + e.toString());
+						failures.incrementAndGet();
+						if (pending.remove("member" + n) != null) {
+							observed.countDown();
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			timer.schedule(new Runnable() {
+				public void run() {
+					pool.execute(run);
+				}
+			}, n * interval, TimeUnit.NANOSECONDS);
+		}
+		done.await();
+		return failures.get();
+	}
+
+	private void await(CountDownLatch latch, String phase) throws InterruptedException {
+		if (!latch.await(timeoutSeconds, TimeUnit.SECONDS)) {
+			System.out.println("Observer missed " + latch.getCount() + " of " + members + " events in " + phase);
+		}
+	}
+
+	private static void seen(ConcurrentHashMap<String, Long> pending, String id, long now, Latencies latencies,
+			CountDownLatch latch) {
+		Long start = pending.remove(id);
+		if (start != null) {
+			latencies.record(now - start);
+			latch.countDown();
+		}
+	}
+
+	private static String idOf(PathChildrenCacheEvent event) {
+		return GroupIndex.nameOf(ZKPaths.getNodeFromPath(event.getData().getPath()));
+	}
+
+	/**
+	 * Arguments: number of members, rate per second, output file, and
+	 * optionally a connection string. Without one an in-process server is
+	 * started
+	 */
+	public static void main(String args[]) throws Exception {
+		int members = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int rate = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		String output = args.length > 2 ? args[2] : "load.json";
+		TestingServer server = null;
+		String connectString;
+		if (args.length > 3) {
+			connectString = args[3];
+		} else {
+			server = new TestingServer();
+			connectString = server.getConnectString();
+		}
+		try {
+			String json = new GroupLoadGenerator(connectString, "/bench-load").members(members).rate(rate).run();
+			System.out.print(json);
+			write(output, json);
+		} finally {
+			CloseableUtils.closeQuietly(server);
+		}
+	}
+
+	private static void write(String file, String json) throws IOException {
+		Writer writer = new FileWriter(file);
+		try {
+			writer.write(json);
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -2,28 +2,55 @@ package org.apache.curator.framework.recipes.nodes;
 
 //package org.apache.curator.framework.recipes.nodes;
 import com.google.common.base.Preconditions;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.framework.api.GetChildrenBuilder;
+import org.apache.curator.framework.listen.ListenerContainer;
 import org.apache.curator.framework.recipes.cache.ChildData;
 import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
 import org.apache.curator.utils.CloseableUtils;
 import org.apache.curator.utils.ThreadUtils;
 import org.apache.curator.utils.ZKPaths;
 
 import java.io.BufferedReader;
 import java.io.Closeable;
+import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.nio.ByteBuffer;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
 
 //import com.netflix.curator.retry;
 import org.apache.curator.RetryPolicy;
@@ -32,7 +59,9 @@ import org.apache.curator.retry.ExponentialBackoffRetry;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.LinkedHashMap;
 
 /**
  * Group membership management. Adds this instance into a group and keeps a
@@ -41,7 +70,31 @@ import java.util.Map;
 public class GroupMember implements Closeable {
 	private final PersistentNode pen;
 	private final PathChildrenCache cache;
-	private final String thisId;
+	// View and listeners; changed only under this
+	private final MembershipTracker tracker;
+	private final CuratorFramework client;
+	private final String membershipPath;
+	private final boolean cacheData;
+	private final Map<String, byte[]> payloads;
+	private final boolean election;
+	private volatile MembershipSnapshotStore snapshots;
+	// Snapshot writes run here, off the cache's event thread; a save asked
+	// for while one is pending is folded into it
+	private static final ExecutorService snapshotWriter = Executors
+			.newSingleThreadExecutor(ThreadUtils.newThreadFactory("MembershipSnapshot"));
+	private final AtomicBoolean savePending = new AtomicBoolean();
+	// Election candidates by sequence number, and the current leader;
+	// guarded by this
+	private final TreeMap<Long, String> candidates = new TreeMap<Long, String>();
+	private volatile String leader;
+	private final Map<LeadershipListener, Executor> leadershipListeners =
+			new ConcurrentHashMap<LeadershipListener, Executor>();
+	// Completed by startAsync once this member's node is in the cache and
+	// the cache has its initial population
+	private final CompletableFuture<MembershipView> ready = new CompletableFuture<MembershipView>();
+	private volatile boolean initialized;
+
+	private static final String PROTECTED_PREFIX = "_c_";
 
 	/**
 	 * @param client
@@ -66,9 +119,250 @@ public class GroupMember implements Closeable {
 	 *            the payload to write in our member node
 	 */
 	public GroupMember(CuratorFramework client, String membershipPath, String thisId, byte[] payload) {
-		this.thisId = Preconditions.checkNotNull(thisId, "thisId cannot be null");
-		cache = newPathChildrenCache(client, membershipPath);
-		pen = newEphemeralNode(client, membershipPath, thisId, payload);
+		this(client, membershipPath, thisId, payload, true, 0);
+	}
+
+	/**
+	 * @param client
+	 *            client
+	 * @param membershipPath
+	 *            the path to use for membership
+	 * @param thisId
+	 *            ID of this group member. MUST be unique for the group
+	 * @param payload
+	 *            the payload to write in our member node
+	 * @param cacheData
+	 *            false to cache only the IDs of the members; payloads are then
+	 *            fetched on demand by getMemberData and are empty in the view
+	 * @param payloadCacheSize
+	 *            number of payloads fetched on demand that are kept, 0 for none
+	 */
+	public GroupMember(CuratorFramework client, String membershipPath, String thisId, byte[] payload,
+			boolean cacheData, int payloadCacheSize) {
+		this(client, membershipPath,
+				newEphemeralNode(client, membershipPath, Preconditions.checkNotNull(thisId, "thisId cannot be null"),
+						payload),
+				cacheData, payloadCacheSize, false);
+	}
+
+	private GroupMember(CuratorFramework client, String membershipPath, PersistentNode pen, boolean cacheData,
+			final int payloadCacheSize, boolean election) {
+		this.pen = pen;
+		this.election = election;
+		this.client = client;
+		this.membershipPath = membershipPath;
+		this.cacheData = cacheData;
+		this.payloads = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+				return size() > payloadCacheSize;
+			}
+		};
+		cache = newPathChildrenCache(client, membershipPath, cacheData);
+		tracker = new MembershipTracker(pen) {
+			@Override
+			protected void memberChanged(String id) {
+				forgetPayload(id);
+				electionChanged(id, true);
+			}
+
+			@Override
+			protected void memberRemoved(String id) {
+				forgetPayload(id);
+				electionChanged(id, false);
+			}
+		};
+		cache.getListenable().addListener(new PathChildrenCacheListener() {
+			@Override
+			public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+				switch (event.getType()) {
+				case CHILD_ADDED:
+				case CHILD_UPDATED:
+					memberChanged(idFromPath(event.getData().getPath()), event.getData().getData());
+					checkReady();
+					break;
+				case CHILD_REMOVED:
+					memberRemoved(idFromPath(event.getData().getPath()));
+					break;
+				case INITIALIZED:
+					if (snapshots != null) {
+						reconcile();
+					}
+					initialized = true;
+					checkReady();
+					break;
+				default:
+					break;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Join a group that admits at most capacity members. Counting the members
+	 * and creating this member's node happen in one transaction: the group
+	 * node's data is written back unchanged at the version that was read, so
+	 * of two joiners racing for the last place one fails on the version, reads
+	 * the group again and finds it full.
+	 * <p>
+	 * The limit holds only at join time and only among joinWithCapacity
+	 * callers. Members that join through the constructors do not write the
+	 * group node, so a joiner racing with them can go past the limit. If the
+	 * session of a member that joined this way is lost, its node is recreated
+	 * without checking the limit again
+	 *
+	 * @param client
+	 *            client
+	 * @param membershipPath
+	 *            the path to use for membership
+	 * @param thisId
+	 *            ID of this group member. MUST be unique for the group
+	 * @param payload
+	 *            the payload to write in our member node
+	 * @param capacity
+	 *            maximum number of members of the group
+	 * @return the started member, or null if the group is full
+	 */
+	public static GroupMember joinWithCapacity(CuratorFramework client, String membershipPath, String thisId,
+			byte[] payload, int capacity) throws Exception {
+		Preconditions.checkNotNull(thisId, "thisId cannot be null");
+		// Same form as a protected node name, so IDs keep their 40 character
+		// prefix
+		String path = ZKPaths.makePath(membershipPath, PROTECTED_PREFIX + UUID.randomUUID() + "-" + thisId);
+		Stat stat = new Stat();
+		while (true) {
+			byte[] groupData = client.getData().storingStatIn(stat).forPath(membershipPath);
+			if (stat.getNumChildren() >= capacity) {
+				return null;
+			}
+			try {
+				client.inTransaction().setData().withVersion(stat.getVersion()).forPath(membershipPath, groupData)
+						.and().create().withMode(CreateMode.EPHEMERAL).forPath(path, payload).and().commit();
+				break;
+			} catch (KeeperException.BadVersionException e) {
+				// another member joined since the read; count again
+			}
+		}
+		// The node exists already; the persistent node takes it over and
+		// recreates it if the session is lost
+		GroupMember member = new GroupMember(client, membershipPath,
+				new PersistentNode(client, CreateMode.EPHEMERAL, false, path, payload), true, 0, false);
+		member.start();
+		return member;
+	}
+
+	/**
+	 * Create a member that also takes part in electing a leader of the group.
+	 * Its node is ephemeral sequential, and the leader is the member with the
+	 * lowest sequence number. The leader is derived from the membership the
+	 * member caches anyway, so the election needs no session, node or watch
+	 * of its own. All members of the group must be created this way
+	 *
+	 * @param client
+	 *            client
+	 * @param membershipPath
+	 *            the path to use for membership
+	 * @param thisId
+	 *            ID of this group member. MUST be unique for the group
+	 * @param payload
+	 *            the payload to write in our member node
+	 * @return the member, not started
+	 */
+	public static GroupMember newElectionMember(CuratorFramework client, String membershipPath, String thisId,
+			byte[] payload) {
+		Preconditions.checkNotNull(thisId, "thisId cannot be null");
+		return new GroupMember(client, membershipPath,
+				new PersistentNode(client, CreateMode.EPHEMERAL_SEQUENTIAL, true,
+						ZKPaths.makePath(membershipPath, thisId), payload),
+				true, 0, true);
+	}
+
+	/**
+	 * Serve the membership from a snapshot file until the cache has caught
+	 * up, and keep the file up to date. Call before start(). The view is set
+	 * from the snapshot at once; when the cache has its initial population,
+	 * members the snapshot has but the group no longer has are removed, and
+	 * since unchanged members do not change the view, listeners only see
+	 * real differences. Members from the snapshot stand in the election only
+	 * once the cache has them. The snapshot is written again then and on
+	 * close
+	 *
+	 * @param file
+	 *            snapshot file, created if it does not exist
+	 * @return true if the snapshot is known to have the current set of
+	 *         members, because the group's cversion and pzxid still match
+	 *         its stamp
+	 */
+	public boolean loadSnapshot(File file) throws Exception {
+		snapshots = new MembershipSnapshotStore(file);
+		MembershipSnapshotStore.Snapshot snapshot = snapshots.load();
+		if (snapshot == null) {
+			return false;
+		}
+		synchronized (this) {
+			Map<String, byte[]> members = new HashMap<String, byte[]>(snapshot.getMembers());
+			members.putAll(tracker.getView().getMembers());
+			tracker.setView(members);
+		}
+		Stat stat = client.checkExists().forPath(membershipPath);
+		return stat != null && stat.getCversion() == snapshot.getCversion() && stat.getPzxid() == snapshot.getPzxid();
+	}
+
+	/**
+	 * Drop the members that came from the snapshot but are not in the group,
+	 * make the rest candidates of the election, and save the reconciled
+	 * membership
+	 */
+	private synchronized void reconcile() {
+		Set<String> current = new HashSet<String>();
+		for (ChildData data : cache.getCurrentData()) {
+			current.add(idFromPath(data.getPath()));
+		}
+		for (String id : tracker.getView().getMembers().keySet()) {
+			if (!current.contains(id)) {
+				memberRemoved(id);
+			}
+		}
+		for (String id : tracker.getView().getMembers().keySet()) {
+			electionChanged(id, true);
+		}
+		requestSave();
+	}
+
+	/**
+	 * Have the snapshot written on the writer thread, unless a save is
+	 * already pending there
+	 */
+	private void requestSave() {
+		if (savePending.compareAndSet(false, true)) {
+			snapshotWriter.execute(new Runnable() {
+				@Override
+				public void run() {
+					savePending.set(false);
+					saveSnapshot();
+				}
+			});
+		}
+	}
+
+	private void saveSnapshot() {
+		try {
+			// The stamp is read first, so it is never newer than the members
+			Stat stat = client.checkExists().forPath(membershipPath);
+			if (stat == null) {
+				return;
+			}
+			Map<String, byte[]> members = new HashMap<String, byte[]>(tracker.getView().getMembers());
+			// The node of this member has another name after a restart
+			String own = tracker.nodeId();
+			if (own != null) {
+				members.remove(own);
+			}
+			snapshots.save(members, stat.getCversion(), stat.getPzxid());
+		} catch (Exception e) {
+			ThreadUtils.checkInterrupted(e);
+			System.out.println(e.toString());
+		}
 	}
 
 	/**
@@ -82,14 +376,57 @@ public class GroupMember implements Closeable {
 		} catch (InterruptedException e) {
 			System.out.println(e.toString());
 		}
+		String id = tracker.nodeId();
+		if (id != null) {
+			memberChanged(id, pen.getData());
+		}
 		try {
-			cache.start();
+			if (snapshots != null) {
+				cache.start(PathChildrenCache.StartMode.POST_INITIALIZED_EVENT);
+			} else {
+				cache.start();
+			}
 		} catch (Exception e) {
 			ThreadUtils.checkInterrupted(e);
 			Throwables.propagate(e);
 		}
 	}
 
+	/**
+	 * Start the group membership without waiting. Registering thisId and the
+	 * initial population of the cache go on in the background, so a process
+	 * can start many members at once and wait for them together instead of
+	 * one round trip and one cache build after the other
+	 *
+	 * @return future completed with the membership once this member's node
+	 *         exists and the cache has every member; it fails if the cache
+	 *         cannot be started and is cancelled if the member is closed first
+	 */
+	public CompletableFuture<MembershipView> startAsync() {
+		pen.start();
+		try {
+			cache.start(PathChildrenCache.StartMode.POST_INITIALIZED_EVENT);
+		} catch (Exception e) {
+			ThreadUtils.checkInterrupted(e);
+			ready.completeExceptionally(e);
+		}
+		return ready;
+	}
+
+	/**
+	 * Complete the future of startAsync when both the initial population and
+	 * this member's node have been seen by the cache
+	 */
+	private void checkReady() {
+		if (!initialized || ready.isDone()) {
+			return;
+		}
+		String path = pen.getActualPath();
+		if (path != null && cache.getCurrentData(path) != null) {
+			ready.complete(tracker.getView());
+		}
+	}
+
 	/**
 	 * Change the data stored in this instance's node
 	 *
@@ -99,6 +436,10 @@ public class GroupMember implements Closeable {
 	public void setThisData(byte[] data) {
 		try {
 			pen.setData(data);
+			String id = tracker.nodeId();
+			if (id != null) {
+				memberChanged(id, data);
+			}
 		} catch (Exception e) {
 			ThreadUtils.checkInterrupted(e);
 			Throwables.propagate(e);
@@ -110,29 +451,265 @@ public class GroupMember implements Closeable {
 	 */
 	@Override
 	public void close() {
+		if (snapshots != null) {
+			// Behind any pending save, so the final view is the one written
+			try {
+				snapshotWriter.submit(new Runnable() {
+					@Override
+					public void run() {
+						saveSnapshot();
+					}
+				}).get();
+			} catch (Exception e) {
+				ThreadUtils.checkInterrupted(e);
+				System.out.println(e.toString());
+			}
+		}
+		ready.cancel(false);
+		leadershipListeners.clear();
+		tracker.close();
 		CloseableUtils.closeQuietly(cache);
 		CloseableUtils.closeQuietly(pen);
 	}
 
 	/**
 	 * Return the current view of membership. The keys are the IDs of the
-	 * members. The values are each member's payload
+	 * members, the names of their nodes; this member is in it once its node
+	 * exists. The values are each member's payload
 	 *
 	 * @return membership
 	 */
 	public Map<String, byte[]> getCurrentMembers() {
-		ImmutableMap.Builder<String, byte[]> builder = ImmutableMap.builder();
-		boolean thisIdAdded = false;
+		return tracker.getView().getMembers();
+	}
+
+	/**
+	 * Return the current snapshot of membership. It is replaced, never
+	 * modified, when the membership changes, so reading it costs a single
+	 * volatile load
+	 *
+	 * @return membership snapshot
+	 */
+	public MembershipView getMembershipView() {
+		return tracker.getView();
+	}
+
+	/**
+	 * Return the payload of a member. With data caching on this is the
+	 * payload in the current view; otherwise it is read from the member's
+	 * node, unless it is among the payloads kept from earlier reads and the
+	 * member has not changed since
+	 *
+	 * @param id
+	 *            member ID, as in the view
+	 * @return payload, or null if there is no such member
+	 */
+	public byte[] getMemberData(String id) throws Exception {
+		if (cacheData) {
+			return tracker.getView().getMembers().get(id);
+		}
+		synchronized (payloads) {
+			byte[] data = payloads.get(id);
+			if (data != null) {
+				return data;
+			}
+		}
+		long version = tracker.getView().getVersion();
+		byte[] data;
+		try {
+			data = client.getData().forPath(ZKPaths.makePath(membershipPath, id));
+		} catch (KeeperException.NoNodeException e) {
+			return null;
+		}
+		synchronized (this) {
+			// Keep it only if no change arrived during the read, as that
+			// change may be newer than what was read
+			if (tracker.getView().getVersion() == version) {
+				synchronized (payloads) {
+					payloads.put(id, data);
+				}
+			}
+		}
+		return data;
+	}
+
+	private void forgetPayload(String id) {
+		synchronized (payloads) {
+			payloads.remove(id);
+		}
+	}
+
+	/**
+	 * @return true if this member is in election mode and is the leader
+	 */
+	public boolean isLeader() {
+		String current = leader;
+		String actualPath = pen.getActualPath();
+		return current != null && actualPath != null && current.equals(idFromPath(actualPath));
+	}
+
+	/**
+	 * Return the leader of the group, as seen in the current view
+	 *
+	 * @return member ID of the leader, or null if there is none or this
+	 *         member is not in election mode
+	 */
+	public String currentLeader() {
+		return leader;
+	}
+
+	/**
+	 * Register a listener for leader changes
+	 *
+	 * @param listener
+	 *            listener
+	 * @param executor
+	 *            executor the listener is called on
+	 */
+	public void addLeadershipListener(LeadershipListener listener, Executor executor) {
+		leadershipListeners.put(listener, executor);
+	}
+
+	/**
+	 * @param listener
+	 *            listener to stop notifying
+	 */
+	public void removeLeadershipListener(LeadershipListener listener) {
+		leadershipListeners.remove(listener);
+	}
+
+	/**
+	 * Track the candidates of the election and tell the listeners when the
+	 * lowest one changes
+	 */
+	private void electionChanged(String id, boolean present) {
+		long sequence = sequenceOf(id);
+		if (!election || sequence < 0) {
+			return;
+		}
+		if (present) {
+			candidates.put(sequence, id);
+		} else {
+			candidates.remove(sequence);
+		}
+		final String next = candidates.isEmpty() ? null : candidates.firstEntry().getValue();
+		if (next == null ? leader == null : next.equals(leader)) {
+			return;
+		}
+		leader = next;
+		final boolean isLeader = isLeader();
+		for (final Map.Entry<LeadershipListener, Executor> entry : leadershipListeners.entrySet()) {
+			entry.getValue().execute(new Runnable() {
+				@Override
+				public void run() {
+					entry.getKey().leaderChanged(next, isLeader);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Given a member ID, return the sequence number of its node
+	 *
+	 * @param id
+	 *            member ID
+	 * @return sequence number, or -1 if the node is not sequential
+	 */
+	static long sequenceOf(String id) {
+		if (id.length() < 10) {
+			return -1;
+		}
+		long sequence = 0;
+		for (int i = id.length() - 10; i < id.length(); i++) {
+			char c = id.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			sequence = sequence * 10 + (c - '0');
+		}
+		return sequence;
+	}
+
+	/**
+	 * Return the listenable of the cache this member keeps of the group, to
+	 * receive the raw cache events without watching the group a second time
+	 *
+	 * @return listenable
+	 */
+	public ListenerContainer<PathChildrenCacheListener> getListenable() {
+		return cache.getListenable();
+	}
+
+	/**
+	 * Register a listener for membership changes. Changes are coalesced for
+	 * up to window after the first one, or until maxChanges are pending, and
+	 * delivered as one delta on executor, so a slow listener holds up neither
+	 * the cache nor other listeners
+	 *
+	 * @param listener
+	 *            listener
+	 * @param executor
+	 *            executor the listener is called on
+	 * @param window
+	 *            longest time a change is held back
+	 * @param unit
+	 *            unit of window
+	 * @param maxChanges
+	 *            number of changes that end a batch early
+	 */
+	public void addMembershipListener(MembershipListener listener, Executor executor, long window, TimeUnit unit,
+			int maxChanges) {
+		tracker.addListener(listener, executor, window, unit, maxChanges);
+	}
+
+	/**
+	 * Register a listener for membership changes, coalesced over 100 ms or
+	 * 1000 changes
+	 *
+	 * @param listener
+	 *            listener
+	 * @param executor
+	 *            executor the listener is called on
+	 */
+	public void addMembershipListener(MembershipListener listener, Executor executor) {
+		addMembershipListener(listener, executor, 100, TimeUnit.MILLISECONDS, 1000);
+	}
+
+	/**
+	 * Stop notifying a listener. Changes not yet delivered to it are dropped
+	 *
+	 * @param listener
+	 *            listener
+	 */
+	public void removeMembershipListener(MembershipListener listener) {
+		tracker.removeListener(listener);
+	}
+
+	private synchronized void memberChanged(String id, byte[] data) {
+		tracker.changed(id, data);
+	}
+
+	private synchronized void memberRemoved(String id) {
+		tracker.removed(id);
+	}
+
+	/**
+	 * Build the view of membership from the cache, as getCurrentMembers did
+	 * before the snapshot was kept up to date by the cache listener
+	 *
+	 * @return membership
+	 */
+	Map<String, byte[]> buildCurrentMembers() {
+		Map<String, byte[]> members = new HashMap<String, byte[]>();
 		for (ChildData data : cache.getCurrentData()) {
-			String id = idFromPath(data.getPath());
-			thisIdAdded = thisIdAdded || id.equals(thisId);
-			builder.put(id, data.getData());
+			members.put(idFromPath(data.getPath()), data.getData());
 		}
-		if (!thisIdAdded) {
-			builder.put(thisId, pen.getData()); // this instance is always a
+		String own = tracker.nodeId();
+		if (own != null && !members.containsKey(own)) {
+			members.put(own, pen.getData()); // this instance is always a
 												// member
 		}
-		return builder.build();
+		return ImmutableMap.copyOf(members);
 	}
 
 	/**
@@ -159,7 +736,12 @@ public class GroupMember implements Closeable {
 	}
 
 	protected static PathChildrenCache newPathChildrenCache(CuratorFramework client, String membershipPath) {
-		return new PathChildrenCache(client, membershipPath, true);
+		return newPathChildrenCache(client, membershipPath, true);
+	}
+
+	protected static PathChildrenCache newPathChildrenCache(CuratorFramework client, String membershipPath,
+			boolean cacheData) {
+		return new PathChildrenCache(client, membershipPath, cacheData);
 	}
 
 	public static void main(String args[]) throws Exception {
@@ -168,17 +750,7 @@ public class GroupMember implements Closeable {
 		if (Objects.equals(args[0],"list")==true)
 		{
 
-			String connection_string=null;
-			int count=Integer.parseInt(args[1]);
-			while (count>0){
-				connection_string += "localhost:" + Integer.toString(2180+count) + ",";
-				count--;
-			}
-			connection_string=connection_string.substring(0,connection_string.length()-1);
-			
-			CuratorFramework zkc2 = CuratorFrameworkFactory.newClient(connection_string,
-					new ExponentialBackoffRetry(1000, 5));
-					zkc2.start();
+			CuratorFramework zkc2 = SharedClients.acquire(connectionString(Integer.parseInt(args[1])));
 					List<String> children=zkc2.getChildren().forPath("/groups");
 					for(int j=0; j<children.size();j++){
 					System.out.println(children.get(j).substring(40));
@@ -186,28 +758,107 @@ public class GroupMember implements Closeable {
 					groups_cache.put(children.get(j).substring(40), children.get(j));
 					}
 					}
+			SharedClients.release(zkc2);
 		}
 		if (Objects.equals(args[0],"close")==true)
 		{
-			String connection_string=null;
-			int count=Integer.parseInt(args[1]);
-			while (count>0){
-				connection_string += "localhost:" + Integer.toString(2180+count) + ",";
-				count--;
+			CuratorFramework zkc2 = SharedClients.acquire(connectionString(Integer.parseInt(args[1])));
+			System.out.println("Teardown: " + new GroupTeardown(zkc2, "/groups").teardown());
+			SharedClients.release(zkc2);
+		}
+		else if (Objects.equals(args[0],"members")==true)
+		{
+			// Cost of getCurrentMembers() against rebuilding the map from
+			// the cache on every call, with args[1] members in one group
+			int members=Integer.parseInt(args[1]);
+			CuratorFramework zkc = SharedClients.acquire(connectionString(Integer.parseInt(args[2])));
+			if (zkc.checkExists().forPath("/bench-members")==null)
+				zkc.create().creatingParentsIfNeeded().forPath("/bench-members");
+			List<GroupMember> joined = new ArrayList<GroupMember>();
+			for (int i = 0; i < members; i++) {
+				GroupMember gm = new GroupMember(zkc, "/bench-members", "member" + i, ("payload" + i).getBytes());
+				gm.start();
+				joined.add(gm);
 			}
-			connection_string=connection_string.substring(0,connection_string.length()-1);
-			
-			CuratorFramework zkc2 = CuratorFrameworkFactory.newClient(connection_string,
-					new ExponentialBackoffRetry(1000, 5));
-					zkc2.start();
-					List<String> children=zkc2.getChildren().forPath("/groups");
-					for(int j=0; j<children.size();j++){
-						List<String> grandchildren=zkc2.getChildren().forPath("/groups/"+children.get(j));
-						for(int l=0; l<grandchildren.size();l++){
-							String path="/groups/"+children.get(j)+"/"+grandchildren.get(l);
-							zkc2.delete().deletingChildrenIfNeeded().forPath(path);
-						}
-					}
+			GroupMember observer = joined.get(0);
+			while (observer.getCurrentMembers().size() < members)
+				Thread.sleep(100);
+
+			int calls = 100000;
+			long start = System.nanoTime();
+			for (int i = 0; i < calls; i++)
+				observer.getCurrentMembers();
+			long snapshot = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < calls; i++)
+				observer.buildCurrentMembers();
+			long rebuild = System.nanoTime() - start;
+			System.out.println("getCurrentMembers (snapshot): " + snapshot / calls + " ns/call");
+			System.out.println("getCurrentMembers (rebuild per call): " + rebuild / calls + " ns/call");
+
+			for (GroupMember gm : joined)
+				gm.close();
+			SharedClients.release(zkc);
+		}
+		else if (Objects.equals(args[0],"sessions")==true)
+		{
+			int members=Integer.parseInt(args[1]);
+			int servers=Integer.parseInt(args[2]);
+			joinBenchmark(members, servers, false);
+			joinBenchmark(members, servers, true);
+		}
+		else if (Objects.equals(args[0],"capacity")==true)
+		{
+			capacityBenchmark(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+		}
+		else if (Objects.equals(args[0],"watches")==true)
+		{
+			int members=Integer.parseInt(args[1]);
+			int servers=Integer.parseInt(args[2]);
+			watchBenchmark(members, servers, true);
+			watchBenchmark(members, servers, false);
+		}
+		else if (Objects.equals(args[0],"payloads")==true)
+		{
+			int members=Integer.parseInt(args[1]);
+			int servers=Integer.parseInt(args[2]);
+			payloadBenchmark(members, servers, true);
+			payloadBenchmark(members, servers, false);
+		}
+		else if (Objects.equals(args[0],"ring")==true)
+		{
+			ringBenchmark(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+		}
+		else if (Objects.equals(args[0],"sharded")==true)
+		{
+			int members=Integer.parseInt(args[1]);
+			int buckets=Integer.parseInt(args[2]);
+			int servers=Integer.parseInt(args[3]);
+			shardBenchmark(members, 0, servers);
+			shardBenchmark(members, buckets, servers);
+		}
+		else if (Objects.equals(args[0],"election")==true)
+		{
+			electionBenchmark(Integer.parseInt(args[1]), Integer.parseInt(args[2]), false);
+			electionBenchmark(Integer.parseInt(args[1]), Integer.parseInt(args[2]), true);
+		}
+		else if (Objects.equals(args[0],"snapshot")==true)
+		{
+			snapshotBenchmark(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+		}
+		else if (Objects.equals(args[0],"startup")==true)
+		{
+			startupBenchmark(Integer.parseInt(args[1]), Integer.parseInt(args[2]), false);
+			startupBenchmark(Integer.parseInt(args[1]), Integer.parseInt(args[2]), true);
+		}
+		else if (Objects.equals(args[0],"load")==true)
+		{
+			// With 0 servers the load runs against an in-process server
+			int servers=Integer.parseInt(args[4]);
+			if (servers > 0)
+				GroupLoadGenerator.main(new String[] { args[1], args[2], args[3], connectionString(servers) });
+			else
+				GroupLoadGenerator.main(new String[] { args[1], args[2], args[3] });
 		}
 		else{
 			List<String> records = new ArrayList<String>();
@@ -229,74 +880,35 @@ public class GroupMember implements Closeable {
 					System.out.println("Not enough data in the file" );
 				else
 				{
+					String connection_string=connectionString(Integer.parseInt(args[3]));
+					GroupIndex groups = new GroupIndex(SharedClients.acquire(connection_string), "/groups");
+					groups.start();
+					List<CompletableFuture<MembershipView>> started = new ArrayList<CompletableFuture<MembershipView>>();
 					for (int i = 0; i < Integer.parseInt(args[2]); i++) {
-						String real_name = null;
-						String connection_string=null;
-						int count=Integer.parseInt(args[3]);
-						while (count>0){
-							connection_string += "localhost:" + Integer.toString(2180+count) + ",";
-							count--;
-						}
-						connection_string=connection_string.substring(0,connection_string.length()-1);
-					
-						CuratorFramework zkc1 = CuratorFrameworkFactory.newClient(connection_string,
-								new ExponentialBackoffRetry(1000, 5));
-						zkc1.start();
+						// Every member holds a reference to the one shared session
+						CuratorFramework zkc1 = SharedClients.acquire(connection_string);
 						List<String> temp = Arrays.asList(records.get(i).split(";"));
-						List<String> children = zkc1.getChildren().forPath("/groups");
-						for (int j = 0; j < children.size(); j++) {
-							if (Objects.equals(children.get(j).substring(40), temp.get(0)) == true) {
-								real_name = children.get(j);
-								break;
-							}
-						}
-						if (real_name == null)
+						String real_name = groups.nodeOf(temp.get(0));
+						if (real_name == null) {
 							System.out.println("No such group exists");
+							SharedClients.release(zkc1);
+						}
 						else {
 							GroupMember gm = new GroupMember(zkc1, "/groups/" + real_name, temp.get(1), temp.get(2).getBytes());
-							gm.start();
+							started.add(gm.startAsync());
 						}
 					}
+					// The members start together; wait until all of them are in
+					CompletableFuture.allOf(started.toArray(new CompletableFuture<?>[started.size()])).get();
 				}
 			}
 			if (Objects.equals(args[0],"create")==true)
 			{
-				String connection_string=null;
-				int count=Integer.parseInt(args[2]);
-				while (count>0){
-					connection_string += "localhost:" + Integer.toString(2180+count) + ",";
-					count--;
-				}
-				connection_string=connection_string.substring(0,connection_string.length()-1);
-				
-				for (int p=0; p<records.size();p++)
-				{
-					String gname=records.get(p);
-					CuratorFramework zkc = CuratorFrameworkFactory.newClient(connection_string,
-							new ExponentialBackoffRetry(1000, 5));
-					zkc.start();
-					List<String> group_names=zkc.getChildren().forPath("/groups");
-					int i;
-					for(i=0; i<group_names.size();i++)
-					{
-						if (Objects.equals(group_names.get(i).substring(40),gname)==true)
-							break;
-					}
-					if (i==group_names.size()){
-						String gr="group";
-						byte[] b_group=gr.getBytes();
-						PersistentNode group_node = newPersistentNode(zkc,"/groups",gname , b_group);
-						group_node.start();
-						try {
-							group_node.waitForInitialCreate(3, TimeUnit.SECONDS);
-						} catch (InterruptedException e)
-						{
-							System.out.println(e.toString());
-						}
-					}
-					else
-						System.out.println("A group with that name already exists!");
-				}
+				CuratorFramework zkc = SharedClients.acquire(connectionString(Integer.parseInt(args[2])));
+				GroupProvisioner.Result result = new GroupProvisioner(zkc, "/groups").provision(records,
+						"group".getBytes());
+				System.out.println("Groups: " + result);
+				SharedClients.release(zkc);
 			}
 			
 		}
@@ -306,4 +918,802 @@ public class GroupMember implements Closeable {
 		 */
 
 	}
+
+	/**
+	 * Join members into one group, with a client of their own each or over
+	 * the shared session, and report the join rate and the number of
+	 * sessions opened on the client and on the servers
+	 */
+	private static void joinBenchmark(int members, int servers, boolean shared) throws Exception {
+		String connection_string = connectionString(servers);
+		CuratorFramework admin = SharedClients.acquire(connection_string);
+		if (admin.checkExists().forPath("/bench-sessions") == null)
+			admin.create().creatingParentsIfNeeded().forPath("/bench-sessions");
+		long connectionsBefore = serverStat(servers, "zk_num_alive_connections");
+
+		List<GroupMember> joined = new ArrayList<GroupMember>();
+		List<CuratorFramework> clients = new ArrayList<CuratorFramework>();
+		Set<Long> sessions = new HashSet<Long>();
+		long start = System.nanoTime();
+		for (int i = 0; i < members; i++) {
+			CuratorFramework client;
+			if (shared) {
+				client = SharedClients.acquire(connection_string);
+			} else {
+				client = CuratorFrameworkFactory.newClient(connection_string, new ExponentialBackoffRetry(1000, 5));
+				client.start();
+			}
+			clients.add(client);
+			GroupMember gm = new GroupMember(client, "/bench-sessions", "member" + i, ("payload" + i).getBytes());
+			gm.start();
+			joined.add(gm);
+		}
+		long elapsed = System.nanoTime() - start;
+		for (CuratorFramework client : clients)
+			sessions.add(client.getZookeeperClient().getZooKeeper().getSessionId());
+		long connections = serverStat(servers, "zk_num_alive_connections") - connectionsBefore;
+
+		System.out.println((shared ? "Shared session: " : "Client per member: ") + members + " members joined in "
+				+ elapsed / 1000000 + " ms (" + (elapsed == 0 ? 0 : members * 1000000000L / elapsed) + " joins/s), "
+				+ sessions.size() + " sessions, " + connections + " new server connections");
+
+		for (GroupMember gm : joined)
+			gm.close();
+		for (CuratorFramework client : clients) {
+			if (shared)
+				SharedClients.release(client);
+			else
+				client.close();
+		}
+		SharedClients.release(admin);
+	}
+
+	/**
+	 * Start members on one shared session and report the join throughput,
+	 * either one blocking start() after the other or all through startAsync()
+	 * with the futures awaited at the end. A member counts as joined once its
+	 * node exists and its cache has the group
+	 */
+	private static void startupBenchmark(int members, int servers, boolean async) throws Exception {
+		String connection_string = connectionString(servers);
+		CuratorFramework client = SharedClients.acquire(connection_string);
+		String path = async ? "/bench-startup-async" : "/bench-startup";
+		if (client.checkExists().forPath(path) == null)
+			client.create().creatingParentsIfNeeded().forPath(path);
+
+		List<GroupMember> joined = new ArrayList<GroupMember>();
+		List<CompletableFuture<MembershipView>> started = new ArrayList<CompletableFuture<MembershipView>>();
+		long start = System.nanoTime();
+		for (int i = 0; i < members; i++) {
+			GroupMember gm = new GroupMember(client, path, "member" + i, ("payload" + i).getBytes());
+			if (async) {
+				started.add(gm.startAsync());
+			} else {
+				gm.start();
+			}
+			joined.add(gm);
+		}
+		CompletableFuture.allOf(started.toArray(new CompletableFuture<?>[started.size()])).get(5, TimeUnit.MINUTES);
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println((async ? "startAsync: " : "start: ") + members + " members joined in "
+				+ elapsed / 1000000 + " ms (" + (elapsed == 0 ? 0 : members * 1000000000L / elapsed) + " joins/s)");
+
+		for (GroupMember gm : joined)
+			gm.close();
+		SharedClients.release(client);
+	}
+
+	/**
+	 * Release joiners at once against a group that admits capacity of them,
+	 * then check that exactly that many got in and report the join latency
+	 */
+	private static void capacityBenchmark(int joiners, final int capacity, int servers) throws Exception {
+		final CuratorFramework zkc = SharedClients.acquire(connectionString(servers));
+		if (zkc.checkExists().forPath("/bench-capacity") != null)
+			zkc.delete().deletingChildrenIfNeeded().forPath("/bench-capacity");
+		zkc.create().creatingParentsIfNeeded().forPath("/bench-capacity", (capacity + "-no").getBytes());
+
+		final CountDownLatch ready = new CountDownLatch(joiners);
+		final CountDownLatch go = new CountDownLatch(1);
+		final long[] latency = new long[joiners];
+		final GroupMember[] joined = new GroupMember[joiners];
+		Thread[] threads = new Thread[joiners];
+		for (int i = 0; i < joiners; i++) {
+			final int n = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					ready.countDown();
+					try {
+						go.await();
+						long start = System.nanoTime();
+						joined[n] = joinWithCapacity(zkc, "/bench-capacity", "member" + n, ("payload" + n).getBytes(),
+								capacity);
+						latency[n] = System.nanoTime() - start;
+					} catch (Exception e) {
+						System.out.println(e.toString());
+					}
+				}
+			};
+			threads[i].start();
+		}
+		ready.await();
+		go.countDown();
+		for (Thread thread : threads)
+			thread.join();
+
+		int admitted = 0;
+		for (GroupMember gm : joined)
+			if (gm != null)
+				admitted++;
+		int children = zkc.getChildren().forPath("/bench-capacity").size();
+		Arrays.sort(latency);
+		System.out.println(joiners + " joiners, capacity " + capacity + ": " + admitted + " admitted, " + children
+				+ " member nodes (" + (admitted == Math.min(joiners, capacity) && children == admitted ? "OK" : "OVERSHOOT")
+				+ ")");
+		System.out.println("Join latency: p50 " + latency[joiners / 2] / 1000 + " us, p99 "
+				+ latency[(int) (joiners * 0.99)] / 1000 + " us, max " + latency[joiners - 1] / 1000 + " us");
+
+		for (GroupMember gm : joined)
+			if (gm != null)
+				gm.close();
+		zkc.delete().deletingChildrenIfNeeded().forPath("/bench-capacity");
+		SharedClients.release(zkc);
+	}
+
+	/**
+	 * Join members into one group, each listening to the group either through
+	 * a PathChildrenCache of its own next to the member, as the notifications
+	 * main used to, or through the member's own cache, and report the server
+	 * watches and the client heap per member
+	 */
+	private static void watchBenchmark(int members, int servers, boolean duplicate) throws Exception {
+		CuratorFramework zkc = SharedClients.acquire(connectionString(servers));
+		if (zkc.checkExists().forPath("/bench-watches") == null)
+			zkc.create().creatingParentsIfNeeded().forPath("/bench-watches");
+		PathChildrenCacheListener listener = new PathChildrenCacheListener() {
+			@Override
+			public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+			}
+		};
+		long watchesBefore = totalWatches(servers);
+		long heapBefore = usedHeap();
+
+		List<GroupMember> joined = new ArrayList<GroupMember>();
+		List<PathChildrenCache> caches = new ArrayList<PathChildrenCache>();
+		for (int i = 0; i < members; i++) {
+			GroupMember gm = new GroupMember(zkc, "/bench-watches", "member" + i, ("payload" + i).getBytes());
+			gm.start();
+			if (duplicate) {
+				PathChildrenCache cache = newPathChildrenCache(zkc, "/bench-watches");
+				cache.start();
+				cache.getListenable().addListener(listener);
+				caches.add(cache);
+			} else {
+				gm.getListenable().addListener(listener);
+			}
+			joined.add(gm);
+		}
+		// Let the caches settle before counting
+		while (joined.get(members - 1).getCurrentMembers().size() < members)
+			Thread.sleep(100);
+		Thread.sleep(1000);
+		long watches = totalWatches(servers) - watchesBefore;
+		long heap = usedHeap() - heapBefore;
+
+		System.out.println((duplicate ? "Second cache per member: " : "Listener on the member's cache: ") + members
+				+ " members, " + watches + " watches (" + watches / members + " per member), " + heap / members
+				+ " heap bytes per member");
+
+		for (PathChildrenCache cache : caches)
+			cache.close();
+		for (GroupMember gm : joined)
+			gm.close();
+		SharedClients.release(zkc);
+	}
+
+	/**
+	 * Join members into one group and have each of them change its payload
+	 * once, caching the payloads of the peers or only their IDs, and report
+	 * the payload bytes delivered to the caches, the packets sent by the
+	 * servers and the CPU time the servers used
+	 */
+	private static void payloadBenchmark(int members, int servers, boolean cacheData) throws Exception {
+		CuratorFramework zkc = SharedClients.acquire(connectionString(servers));
+		if (zkc.checkExists().forPath("/bench-payloads") == null)
+			zkc.create().creatingParentsIfNeeded().forPath("/bench-payloads");
+		final AtomicLong bytes = new AtomicLong();
+		PathChildrenCacheListener counter = new PathChildrenCacheListener() {
+			@Override
+			public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+				if (event.getData() != null && event.getData().getData() != null)
+					bytes.addAndGet(event.getData().getData().length);
+			}
+		};
+		byte[] payload = new byte[100];
+		long packetsBefore = serverStat(servers, "zk_packets_sent");
+		long cpuBefore = serverCpuTicks(servers);
+
+		List<GroupMember> joined = new ArrayList<GroupMember>();
+		for (int i = 0; i < members; i++) {
+			GroupMember gm = new GroupMember(zkc, "/bench-payloads", "member" + i, payload, cacheData, 0);
+			gm.getListenable().addListener(counter);
+			gm.start();
+			joined.add(gm);
+		}
+		for (GroupMember gm : joined)
+			gm.setThisData(payload);
+		// Let the caches settle before counting
+		Thread.sleep(5000);
+		long packets = serverStat(servers, "zk_packets_sent") - packetsBefore;
+		long cpu = serverCpuTicks(servers) - cpuBefore;
+
+		System.out.println((cacheData ? "Payloads cached: " : "IDs only: ") + members + " members, "
+				+ bytes.get() + " payload bytes delivered, " + packets + " packets sent, " + cpu
+				+ " server CPU ticks");
+
+		for (GroupMember gm : joined)
+			gm.close();
+		SharedClients.release(zkc);
+	}
+
+	/**
+	 * User plus system CPU time, in clock ticks, of the servers started by
+	 * evalGM.sh, read from /proc through their pid files
+	 */
+	private static long serverCpuTicks(int servers) {
+		long total = 0;
+		for (int count = servers; count > 0; count--) {
+			try {
+				BufferedReader pidFile = new BufferedReader(
+						new FileReader("/opt/zookeeper-3.4.9/data/zk" + count + "/zookeeper_server.pid"));
+				String pid = pidFile.readLine().trim();
+				pidFile.close();
+				BufferedReader stat = new BufferedReader(new FileReader("/proc/" + pid + "/stat"));
+				String line = stat.readLine();
+				stat.close();
+				// Fields after the command name, which is in parentheses;
+				// utime and stime are the 14th and 15th fields
+				String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+				total += Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+			} catch (IOException e) {
+				System.out.println(e.toString());
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Build a consistent-hash ring over a group of members, report the lookup
+	 * rate, and the share of keys that move when a member joins and leaves
+	 */
+	private static void ringBenchmark(int members, int servers) throws Exception {
+		CuratorFramework zkc = SharedClients.acquire(connectionString(servers));
+		if (zkc.checkExists().forPath("/bench-ring") == null)
+			zkc.create().creatingParentsIfNeeded().forPath("/bench-ring");
+		List<GroupMember> joined = new ArrayList<GroupMember>();
+		for (int i = 0; i < members; i++) {
+			GroupMember gm = new GroupMember(zkc, "/bench-ring", "member" + i, "1".getBytes());
+			gm.start();
+			joined.add(gm);
+		}
+		GroupMember observer = joined.get(0);
+		while (observer.getCurrentMembers().size() < members)
+			Thread.sleep(100);
+		ConsistentHashRing ring = new ConsistentHashRing(observer, 100);
+
+		int keys = 100000;
+		String[] key = new String[keys];
+		for (int i = 0; i < keys; i++)
+			key[i] = "key" + i;
+		int lookups = 10000000;
+		long start = System.nanoTime();
+		for (int i = 0; i < lookups; i++)
+			ring.ownerOf(key[i % keys]);
+		long elapsed = System.nanoTime() - start;
+		System.out.println("Ring of " + members + " members, " + ring.size() + " points: "
+				+ (elapsed == 0 ? 0 : lookups * 1000000000L / elapsed) + " lookups/s");
+
+		// Every member must route every key to the same owner
+		GroupMember last = joined.get(members - 1);
+		while (last.getCurrentMembers().size() < members)
+			Thread.sleep(100);
+		ConsistentHashRing other = new ConsistentHashRing(last, 100);
+		int disagree = 0;
+		for (int i = 0; i < keys; i++)
+			if (!ring.ownerOf(key[i]).equals(other.ownerOf(key[i])))
+				disagree++;
+		System.out.println("Rings of two members differ on " + disagree + " of " + keys + " keys");
+
+		String[] before = new String[keys];
+		for (int i = 0; i < keys; i++)
+			before[i] = ring.ownerOf(key[i]);
+		long version = ring.getVersion();
+		GroupMember extra = new GroupMember(zkc, "/bench-ring", "extra", "1".getBytes());
+		extra.start();
+		while (ring.getVersion() == version)
+			Thread.sleep(10);
+		System.out.println("Join moved " + moved(ring, key, before) + " of " + keys + " keys (ideal "
+				+ keys / (members + 1) + ")");
+
+		for (int i = 0; i < keys; i++)
+			before[i] = ring.ownerOf(key[i]);
+		version = ring.getVersion();
+		extra.close();
+		while (ring.getVersion() == version)
+			Thread.sleep(10);
+		System.out.println("Leave moved " + moved(ring, key, before) + " of " + keys + " keys (ideal "
+				+ keys / (members + 1) + ")");
+
+		for (GroupMember gm : joined)
+			gm.close();
+		SharedClients.release(zkc);
+	}
+
+	private static int moved(ConsistentHashRing ring, String[] key, String[] before) {
+		int moved = 0;
+		for (int i = 0; i < key.length; i++)
+			if (!before[i].equals(ring.ownerOf(key[i])))
+				moved++;
+		return moved;
+	}
+
+	/**
+	 * Fill a group with members, flat or spread over buckets, watch it with a
+	 * few observers and time how long single joins take to reach all of them.
+	 * The bytes the observers fetch per join are the child listing of the
+	 * group or of one bucket, counted from its names
+	 */
+	private static void shardBenchmark(int members, final int buckets, int servers) throws Exception {
+		final String path = buckets == 0 ? "/bench-flat" : "/bench-sharded";
+		String connection_string = connectionString(servers);
+		CuratorFramework zkc = SharedClients.acquire(connection_string);
+		if (zkc.checkExists().forPath(path) == null)
+			zkc.create().creatingParentsIfNeeded().forPath(path);
+		for (int b = 0; b < buckets; b++)
+			if (zkc.checkExists().forPath(ShardedGroupMember.bucketPath(path, b)) == null)
+				zkc.create().forPath(ShardedGroupMember.bucketPath(path, b));
+
+		// The members are bare ephemeral nodes of one session of their own,
+		// created in a pipeline; closing the session removes them
+		CuratorFramework filler = CuratorFrameworkFactory.newClient(connection_string,
+				new ExponentialBackoffRetry(1000, 5));
+		filler.start();
+		populate(filler, path, buckets, members);
+
+		int observers = 5;
+		final ConcurrentHashMap<String, CountDownLatch> probes = new ConcurrentHashMap<String, CountDownLatch>();
+		MembershipListener seen = new MembershipListener() {
+			@Override
+			public void membershipChanged(MembershipDelta delta) {
+				for (String id : delta.getAdded().keySet()) {
+					CountDownLatch latch = probes.get(GroupIndex.nameOf(id));
+					if (latch != null)
+						latch.countDown();
+				}
+			}
+		};
+		Executor direct = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		};
+		List<Closeable> watching = new ArrayList<Closeable>();
+		for (int o = 0; o < observers; o++) {
+			if (buckets == 0) {
+				GroupMember gm = new GroupMember(zkc, path, "observer" + o, new byte[0], false, 0);
+				gm.start();
+				while (gm.getCurrentMembers().size() < members + 1)
+					Thread.sleep(100);
+				gm.addMembershipListener(seen, direct, 0, TimeUnit.MILLISECONDS, 1);
+				watching.add(gm);
+			} else {
+				ShardedGroupMember gm = new ShardedGroupMember(zkc, path, buckets, "observer" + o, new byte[0],
+						false);
+				gm.start();
+				while (gm.getCurrentMembers().size() < members + 1)
+					Thread.sleep(100);
+				gm.addMembershipListener(seen, direct, 0, TimeUnit.MILLISECONDS, 1);
+				watching.add(gm);
+			}
+		}
+
+		int rounds = 20;
+		long[] latency = new long[rounds];
+		long listingBytes = 0;
+		long packetsBefore = serverStat(servers, "zk_packets_sent");
+		for (int r = 0; r < rounds; r++) {
+			String id = "probe" + r;
+			CountDownLatch latch = new CountDownLatch(observers);
+			probes.put(id, latch);
+			String node = memberPath(path, buckets, id);
+			long start = System.nanoTime();
+			zkc.create().withMode(CreateMode.EPHEMERAL).forPath(node);
+			latch.await(30, TimeUnit.SECONDS);
+			latency[r] = System.nanoTime() - start;
+			for (String child : zkc.getChildren().forPath(node.substring(0, node.lastIndexOf('/'))))
+				listingBytes += child.length() + 4;
+			zkc.delete().forPath(node);
+		}
+		long packets = serverStat(servers, "zk_packets_sent") - packetsBefore;
+		Arrays.sort(latency);
+
+		System.out.println((buckets == 0 ? "Flat" : buckets + " buckets") + ", " + members + " members: join seen by "
+				+ observers + " observers in p50 " + latency[rounds / 2] / 1000 + " us, max "
+				+ latency[rounds - 1] / 1000 + " us; " + listingBytes * observers / rounds
+				+ " listing bytes fetched per join, " + packets / rounds + " packets sent per join");
+
+		for (Closeable gm : watching)
+			gm.close();
+		filler.close();
+		SharedClients.release(zkc);
+	}
+
+	/**
+	 * Create bare ephemeral member nodes in a pipeline on the session of
+	 * filler
+	 */
+	private static void populate(CuratorFramework filler, String path, int buckets, int members) throws Exception {
+		ZooKeeper zk = filler.getZookeeperClient().getZooKeeper();
+		final Semaphore inFlight = new Semaphore(1000);
+		StringCallback created = new StringCallback() {
+			@Override
+			public void processResult(int rc, String p, Object ctx, String name) {
+				inFlight.release();
+			}
+		};
+		for (int i = 0; i < members; i++) {
+			inFlight.acquire();
+			zk.create(memberPath(path, buckets, "member" + i), ("payload" + i).getBytes(), Ids.OPEN_ACL_UNSAFE,
+					CreateMode.EPHEMERAL, created, null);
+		}
+		inFlight.acquire(1000);
+		inFlight.release(1000);
+	}
+
+	/**
+	 * Time until a restarted member has a usable view of a group of members,
+	 * with the membership fetched from the servers and with a snapshot file
+	 * written by the previous run
+	 */
+	private static void snapshotBenchmark(int members, int servers) throws Exception {
+		String connection_string = connectionString(servers);
+		CuratorFramework zkc = SharedClients.acquire(connection_string);
+		if (zkc.checkExists().forPath("/bench-snapshot") == null)
+			zkc.create().creatingParentsIfNeeded().forPath("/bench-snapshot");
+		CuratorFramework filler = CuratorFrameworkFactory.newClient(connection_string,
+				new ExponentialBackoffRetry(1000, 5));
+		filler.start();
+		populate(filler, "/bench-snapshot", 0, members);
+		File file = File.createTempFile("membership", ".snapshot");
+		file.delete();
+
+		// Without a snapshot; this run also writes the snapshot on close
+		long start = System.nanoTime();
+		GroupMember gm = new GroupMember(zkc, "/bench-snapshot", "restarted", new byte[0]);
+		gm.loadSnapshot(file);
+		gm.start();
+		while (gm.getCurrentMembers().size() < members + 1)
+			Thread.sleep(1);
+		long cold = System.nanoTime() - start;
+		gm.close();
+
+		start = System.nanoTime();
+		gm = new GroupMember(zkc, "/bench-snapshot", "restarted", new byte[0]);
+		boolean current = gm.loadSnapshot(file);
+		// The snapshot leaves out this member's node of the last run
+		long usable = gm.getCurrentMembers().size() >= members ? System.nanoTime() - start : -1;
+		gm.start();
+		long started = System.nanoTime() - start;
+		gm.close();
+
+		System.out.println(members + " members: first usable view after " + cold / 1000000
+				+ " ms without a snapshot, " + (usable < 0 ? "never" : usable / 1000 + " us")
+				+ " with it (snapshot " + (current ? "current" : "stale") + ", start returned after "
+				+ started / 1000000 + " ms)");
+		file.delete();
+		filler.close();
+		SharedClients.release(zkc);
+	}
+
+	/**
+	 * Path of a bare member node, in the layout GroupMember or
+	 * ShardedGroupMember expects
+	 */
+	private static String memberPath(String path, int buckets, String id) {
+		String parent = buckets == 0 ? path
+				: ShardedGroupMember.bucketPath(path, ShardedGroupMember.bucketOf(id, buckets));
+		return ZKPaths.makePath(parent, "_c_" + UUID.randomUUID() + "-" + id);
+	}
+
+	/**
+	 * Make the leader fail again and again and measure how long the other
+	 * members take to agree on a new one. The leader fails either by closing
+	 * its client, which deletes its node at once, or by losing its
+	 * connection, as a hung or partitioned process would; its node then only
+	 * goes when the server expires the session
+	 */
+	private static void electionBenchmark(int members, int servers, boolean expire) throws Exception {
+		String connection_string = connectionString(servers);
+		CuratorFramework admin = SharedClients.acquire(connection_string);
+		if (admin.checkExists().forPath("/bench-election") == null)
+			admin.create().creatingParentsIfNeeded().forPath("/bench-election");
+		int sessionTimeout = 10000;
+		String how = expire ? "session expiry (" + sessionTimeout + " ms timeout)" : "client close";
+
+		final List<GroupMember> alive = new CopyOnWriteArrayList<GroupMember>();
+		final Map<GroupMember, CuratorFramework> sessions = new HashMap<GroupMember, CuratorFramework>();
+		final Map<GroupMember, Partition> partitions = new HashMap<GroupMember, Partition>();
+		for (int i = 0; i < members; i++) {
+			Partition partition = null;
+			CuratorFramework client;
+			if (expire) {
+				// Every member talks to the first server through its own
+				// forwarder, so any of them can be cut off
+				partition = new Partition("localhost", 2181);
+				client = CuratorFrameworkFactory.newClient(partition.connectString(), sessionTimeout, 15000,
+						new ExponentialBackoffRetry(1000, 5));
+			} else {
+				client = CuratorFrameworkFactory.newClient(connection_string, new ExponentialBackoffRetry(1000, 5));
+			}
+			client.start();
+			GroupMember gm = newElectionMember(client, "/bench-election", "member" + i, ("payload" + i).getBytes());
+			gm.start();
+			alive.add(gm);
+			sessions.put(gm, client);
+			if (partition != null)
+				partitions.put(gm, partition);
+		}
+		GroupMember leader = awaitLeader(alive, 30000);
+		if (leader == null) {
+			System.out.println("No leader was elected");
+		}
+
+		int rounds = Math.min(members - 1, 5);
+		int failovers = 0;
+		long total = 0;
+		for (int r = 0; r < rounds && leader != null; r++) {
+			String old = leader.currentLeader();
+			GroupMember dead = leader;
+			alive.remove(dead);
+			long start = System.nanoTime();
+			if (expire) {
+				// The session lives on in the server until it expires,
+				// and only then is its node removed
+				partitions.get(dead).cut();
+			} else {
+				// Closing the client ends the session, which removes its node
+				sessions.get(dead).close();
+			}
+			leader = awaitLeader(alive, sessionTimeout + 30000);
+			long elapsed = System.nanoTime() - start;
+			dead.close();
+			if (expire) {
+				sessions.get(dead).close();
+				partitions.get(dead).close();
+			}
+			if (leader == null || leader.currentLeader().equals(old)) {
+				System.out.println("Failover " + (r + 1) + " after " + how + ": no new leader after "
+						+ elapsed / 1000000 + " ms");
+				break;
+			}
+			failovers++;
+			total += elapsed;
+			System.out.println("Failover " + (r + 1) + " after " + how + ": all " + alive.size()
+					+ " members agree on " + leader.currentLeader().substring(40) + " after " + elapsed / 1000000
+					+ " ms");
+		}
+		if (failovers > 0)
+			System.out.println("Average failover after " + how + ": " + total / failovers / 1000000 + " ms over "
+					+ failovers + " failovers");
+
+		for (GroupMember gm : alive) {
+			gm.close();
+			sessions.get(gm).close();
+		}
+		for (Partition partition : partitions.values())
+			partition.close();
+		SharedClients.release(admin);
+	}
+
+	/**
+	 * TCP forwarder between clients and one server. Once cut it keeps the
+	 * connections open but passes nothing and takes no new connections, so
+	 * the server hears no more heartbeats and expires the session after its
+	 * timeout, as for a hung or partitioned process
+	 */
+	private static class Partition implements Closeable {
+		private final String host;
+		private final int port;
+		private final ServerSocket listener;
+		private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+		private volatile boolean cut;
+
+		Partition(String host, int port) throws IOException {
+			this.host = host;
+			this.port = port;
+			listener = new ServerSocket(0);
+			Thread acceptor = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					accept();
+				}
+			}, "Partition-" + listener.getLocalPort());
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		String connectString() {
+			return "127.0.0.1:" + listener.getLocalPort();
+		}
+
+		void cut() {
+			cut = true;
+		}
+
+		@Override
+		public void close() {
+			CloseableUtils.closeQuietly(listener);
+			for (Socket socket : sockets)
+				CloseableUtils.closeQuietly(socket);
+		}
+
+		private void accept() {
+			while (!listener.isClosed()) {
+				try {
+					Socket client = listener.accept();
+					if (cut) {
+						client.close();
+						continue;
+					}
+					Socket server = new Socket(host, port);
+					sockets.add(client);
+					sockets.add(server);
+					pump(client, server);
+					pump(server, client);
+				} catch (IOException e) {
+					// closed, or the server is down; the client retries
+				}
+			}
+		}
+
+		private void pump(final Socket from, final Socket to) {
+			Thread pump = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					byte[] buffer = new byte[8192];
+					try {
+						InputStream in = from.getInputStream();
+						OutputStream out = to.getOutputStream();
+						int n;
+						while ((n = in.read(buffer)) >= 0) {
+							if (!cut) {
+								out.write(buffer, 0, n);
+								out.flush();
+							}
+						}
+					} catch (IOException e) {
+						// closed
+					}
+					CloseableUtils.closeQuietly(from);
+					CloseableUtils.closeQuietly(to);
+				}
+			});
+			pump.setDaemon(true);
+			pump.start();
+		}
+	}
+
+	/**
+	 * Wait until every member sees the same leader and that leader is one of
+	 * them
+	 *
+	 * @return the member that is the leader, or null on timeout
+	 */
+	private static GroupMember awaitLeader(List<GroupMember> members, long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (System.currentTimeMillis() < deadline) {
+			String agreed = null;
+			boolean same = true;
+			GroupMember leader = null;
+			for (GroupMember gm : members) {
+				String seen = gm.currentLeader();
+				if (seen == null || (agreed != null && !agreed.equals(seen))) {
+					same = false;
+					break;
+				}
+				agreed = seen;
+				if (gm.isLeader())
+					leader = gm;
+			}
+			if (same && leader != null)
+				return leader;
+			Thread.sleep(1);
+		}
+		return null;
+	}
+
+	/**
+	 * Total number of watches over the servers of the local ensemble
+	 */
+	private static long totalWatches(int servers) {
+		long total = 0;
+		for (int count = servers; count > 0; count--) {
+			try {
+				for (String line : fourLetterWord("localhost", 2180 + count, "wchs").split("\n")) {
+					if (line.startsWith("Total watches:"))
+						total += Long.parseLong(line.substring("Total watches:".length()).trim());
+				}
+			} catch (IOException e) {
+				System.out.println(e.toString());
+			}
+		}
+		return total;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Sum of a mntr value over the servers of the local ensemble
+	 */
+	private static long serverStat(int servers, String key) {
+		long total = 0;
+		for (int count = servers; count > 0; count--) {
+			try {
+				for (String line : fourLetterWord("localhost", 2180 + count, "mntr").split("\n")) {
+					String[] splited = line.split("\t");
+					if (splited.length == 2 && splited[0].equals(key))
+						total += Long.parseLong(splited[1].trim());
+				}
+			} catch (IOException e) {
+				System.out.println(e.toString());
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Send a four letter word command to a server and return its answer
+	 */
+	private static String fourLetterWord(String host, int port, String command) throws IOException {
+		Socket socket = new Socket(host, port);
+		try {
+			socket.getOutputStream().write(command.getBytes());
+			socket.shutdownOutput();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			StringBuilder answer = new StringBuilder();
+			String line;
+			while ((line = reader.readLine()) != null)
+				answer.append(line).append("\n");
+			return answer.toString();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Connection string for the local ensemble started by evalGM.sh
+	 *
+	 * @param servers
+	 *            number of servers
+	 * @return connection string
+	 */
+	private static String connectionString(int servers) {
+		StringBuilder connection_string = new StringBuilder();
+		for (int count = servers; count > 0; count--) {
+			connection_string.append("localhost:").append(2180 + count);
+			if (count > 1)
+				connection_string.append(",");
+		}
+		return connection_string.toString();
+	}
 }
\ No newline at end of file
@@ -3,11 +3,14 @@ package org.apache.curator.framework.recipes.nodes;
 //package org.apache.curator.framework.recipes.nodes;
 import com.google.common.base.Preconditions;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.framework.api.GetChildrenBuilder;
+import org.apache.curator.framework.listen.ListenerContainer;
 import org.apache.curator.framework.recipes.cache.ChildData;
 import org.apache.curator.framework.recipes.cache.PathChildrenCache;
 import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
@@ -16,19 +19,30 @@ import org.apache.curator.utils.CloseableUtils;
 import org.apache.curator.utils.ThreadUtils;
 import org.apache.curator.utils.ZKPaths;
 import java.io.Closeable;
+import java.io.File;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
 //import com.netflix.curator.retry;
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.LinkedHashMap;
 
 /**
  * Group membership management. Adds this instance into a group and keeps a
@@ -37,7 +51,31 @@ import java.util.Map;
 public class GroupMember implements Closeable {
 	private final PersistentNode pen;
 	private final PathChildrenCache cache;
-	private final String thisId;
+	// View and listeners; changed only under this
+	private final MembershipTracker tracker;
+	private final CuratorFramework client;
+	private final String membershipPath;
+	private final boolean cacheData;
+	private final Map<String, byte[]> payloads;
+	private final boolean election;
+	private volatile MembershipSnapshotStore snapshots;
+	// Snapshot writes run here, off the cache's event thread; a save asked
+	// for while one is pending is folded into it
+	private static final ExecutorService snapshotWriter = Executors
+			.newSingleThreadExecutor(ThreadUtils.newThreadFactory("MembershipSnapshot"));
+	private final AtomicBoolean savePending = new AtomicBoolean();
+	// Election candidates by sequence number, and the current leader;
+	// guarded by this
+	private final TreeMap<Long, String> candidates = new TreeMap<Long, String>();
+	private volatile String leader;
+	private final Map<LeadershipListener, Executor> leadershipListeners =
+			new ConcurrentHashMap<LeadershipListener, Executor>();
+	// Completed by startAsync once this member's node is in the cache and
+	// the cache has its initial population
+	private final CompletableFuture<MembershipView> ready = new CompletableFuture<MembershipView>();
+	private volatile boolean initialized;
+
+	private static final String PROTECTED_PREFIX = "_c_";
 
 	/**
 	 * @param client
@@ -62,9 +100,250 @@ public class GroupMember implements Closeable {
 	 *            the payload to write in our member node
 	 */
 	public GroupMember(CuratorFramework client, String membershipPath, String thisId, byte[] payload) {
-		this.thisId = Preconditions.checkNotNull(thisId, "thisId cannot be null");
-		cache = newPathChildrenCache(client, membershipPath);
-		pen = newEphemeralNode(client, membershipPath, thisId, payload);
+		this(client, membershipPath, thisId, payload, true, 0);
+	}
+
+	/**
+	 * @param client
+	 *            client
+	 * @param membershipPath
+	 *            the path to use for membership
+	 * @param thisId
+	 *            ID of this group member. MUST be unique for the group
+	 * @param payload
+	 *            the payload to write in our member node
+	 * @param cacheData
+	 *            false to cache only the IDs of the members; payloads are then
+	 *            fetched on demand by getMemberData and are empty in the view
+	 * @param payloadCacheSize
+	 *            number of payloads fetched on demand that are kept, 0 for none
+	 */
+	public GroupMember(CuratorFramework client, String membershipPath, String thisId, byte[] payload,
+			boolean cacheData, int payloadCacheSize) {
+		this(client, membershipPath,
+				newEphemeralNode(client, membershipPath, Preconditions.checkNotNull(thisId, "thisId cannot be null"),
+						payload),
+				cacheData, payloadCacheSize, false);
+	}
+
+	private GroupMember(CuratorFramework client, String membershipPath, PersistentNode pen, boolean cacheData,
+			final int payloadCacheSize, boolean election) {
+		this.pen = pen;
+		this.election = election;
+		this.client = client;
+		this.membershipPath = membershipPath;
+		this.cacheData = cacheData;
+		this.payloads = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+				return size() > payloadCacheSize;
+			}
+		};
+		cache = newPathChildrenCache(client, membershipPath, cacheData);
+		tracker = new MembershipTracker(pen) {
+			@Override
+			protected void memberChanged(String id) {
+				forgetPayload(id);
+				electionChanged(id, true);
+			}
+
+			@Override
+			protected void memberRemoved(String id) {
+				forgetPayload(id);
+				electionChanged(id, false);
+			}
+		};
+		cache.getListenable().addListener(new PathChildrenCacheListener() {
+			@Override
+			public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+				switch (event.getType()) {
+				case CHILD_ADDED:
+				case CHILD_UPDATED:
+					memberChanged(idFromPath(event.getData().getPath()), event.getData().getData());
+					checkReady();
+					break;
+				case CHILD_REMOVED:
+					memberRemoved(idFromPath(event.getData().getPath()));
+					break;
+				case INITIALIZED:
+					if (snapshots != null) {
+						reconcile();
+					}
+					initialized = true;
+					checkReady();
+					break;
+				default:
+					break;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Join a group that admits at most capacity members. Counting the members
+	 * and creating this member's node happen in one transaction: the group
+	 * node's data is written back unchanged at the version that was read, so
+	 * of two joiners racing for the last place one fails on the version, reads
+	 * the group again and finds it full.
+	 * <p>
+	 * The limit holds only at join time and only among joinWithCapacity
+	 * callers. Members that join through the constructors do not write the
+	 * group node, so a joiner racing with them can go past the limit. If the
+	 * session of a member that joined this way is lost, its node is recreated
+	 * without checking the limit again
+	 *
+	 * @param client
+	 *            client
+	 * @param membershipPath
+	 *            the path to use for membership
+	 * @param thisId
+	 *            ID of this group member. MUST be unique for the group
+	 * @param payload
+	 *            the payload to write in our member node
+	 * @param capacity
+	 *            maximum number of members of the group
+	 * @return the started member, or null if the group is full
+	 */
+	public static GroupMember joinWithCapacity(CuratorFramework client, String membershipPath, String thisId,
+			byte[] payload, int capacity) throws Exception {
+		Preconditions.checkNotNull(thisId, "thisId cannot be null");
+		// Same form as a protected node name, so IDs keep their 40 character
+		// prefix
+		String path = ZKPaths.makePath(membershipPath, PROTECTED_PREFIX + UUID.randomUUID() + "-" + thisId);
+		Stat stat = new Stat();
+		while (true) {
+			byte[] groupData = client.getData().storingStatIn(stat).forPath(membershipPath);
+			if (stat.getNumChildren() >= capacity) {
+				return null;
+			}
+			try {
+				client.inTransaction().setData().withVersion(stat.getVersion()).forPath(membershipPath, groupData)
+						.and().create().withMode(CreateMode.EPHEMERAL).forPath(path, payload).and().commit();
+				break;
+			} catch (KeeperException.BadVersionException e) {
+				// another member joined since the read; count again
+			}
+		}
+		// The node exists already; the persistent node takes it over and
+		// recreates it if the session is lost
+		GroupMember member = new GroupMember(client, membershipPath,
+				new PersistentNode(client, CreateMode.EPHEMERAL, false, path, payload), true, 0, false);
+		member.start();
+		return member;
+	}
+
+	/**
+	 * Create a member that also takes part in electing a leader of the group.
+	 * Its node is ephemeral sequential, and the leader is the member with the
+	 * lowest sequence number. The leader is derived from the membership the
+	 * member caches anyway, so the election needs no session, node or watch
+	 * of its own. All members of the group must be created this way
+	 *
+	 * @param client
+	 *            client
+	 * @param membershipPath
+	 *            the path to use for membership
+	 * @param thisId
+	 *            ID of this group member. MUST be unique for the group
+	 * @param payload
+	 *            the payload to write in our member node
+	 * @return the member, not started
+	 */
+	public static GroupMember newElectionMember(CuratorFramework client, String membershipPath, String thisId,
+			byte[] payload) {
+		Preconditions.checkNotNull(thisId, "thisId cannot be null");
+		return new GroupMember(client, membershipPath,
+				new PersistentNode(client, CreateMode.EPHEMERAL_SEQUENTIAL, true,
+						ZKPaths.makePath(membershipPath, thisId), payload),
+				true, 0, true);
+	}
+
+	/**
+	 * Serve the membership from a snapshot file until the cache has caught
+	 * up, and keep the file up to date. Call before start(). The view is set
+	 * from the snapshot at once; when the cache has its initial population,
+	 * members the snapshot has but the group no longer has are removed, and
+	 * since unchanged members do not change the view, listeners only see
+	 * real differences. Members from the snapshot stand in the election only
+	 * once the cache has them. The snapshot is written again then and on
+	 * close
+	 *
+	 * @param file
+	 *            snapshot file, created if it does not exist
+	 * @return true if the snapshot is known to have the current set of
+	 *         members, because the group's cversion and pzxid still match
+	 *         its stamp
+	 */
+	public boolean loadSnapshot(File file) throws Exception {
+		snapshots = new MembershipSnapshotStore(file);
+		MembershipSnapshotStore.Snapshot snapshot = snapshots.load();
+		if (snapshot == null) {
+			return false;
+		}
+		synchronized (this) {
+			Map<String, byte[]> members = new HashMap<String, byte[]>(snapshot.getMembers());
+			members.putAll(tracker.getView().getMembers());
+			tracker.setView(members);
+		}
+		Stat stat = client.checkExists().forPath(membershipPath);
+		return stat != null && stat.getCversion() == snapshot.getCversion() && stat.getPzxid() == snapshot.getPzxid();
+	}
+
+	/**
+	 * Drop the members that came from the snapshot but are not in the group,
+	 * make the rest candidates of the election, and save the reconciled
+	 * membership
+	 */
+	private synchronized void reconcile() {
+		Set<String> current = new HashSet<String>();
+		for (ChildData data : cache.getCurrentData()) {
+			current.add(idFromPath(data.getPath()));
+		}
+		for (String id : tracker.getView().getMembers().keySet()) {
+			if (!current.contains(id)) {
+				memberRemoved(id);
+			}
+		}
+		for (String id : tracker.getView().getMembers().keySet()) {
+			electionChanged(id, true);
+		}
+		requestSave();
+	}
+
+	/**
+	 * Have the snapshot written on the writer thread, unless a save is
+	 * already pending there
+	 */
+	private void requestSave() {
+		if (savePending.compareAndSet(false, true)) {
+			snapshotWriter.execute(new Runnable() {
+				@Override
+				public void run() {
+					savePending.set(false);
+					saveSnapshot();
+				}
+			});
+		}
+	}
+
+	private void saveSnapshot() {
+		try {
+			// The stamp is read first, so it is never newer than the members
+			Stat stat = client.checkExists().forPath(membershipPath);
+			if (stat == null) {
+				return;
+			}
+			Map<String, byte[]> members = new HashMap<String, byte[]>(tracker.getView().getMembers());
+			// The node of this member has another name after a restart
+			String own = tracker.nodeId();
+			if (own != null) {
+				members.remove(own);
+			}
+			snapshots.save(members, stat.getCversion(), stat.getPzxid());
+		} catch (Exception e) {
+			ThreadUtils.checkInterrupted(e);
+			System.out.println(e.toString());
+		}
 	}
 
 	/**
@@ -78,14 +357,57 @@ public class GroupMember implements Closeable {
 		} catch (InterruptedException e) {
 			System.out.println(e.toString());
 		}
+		String id = tracker.nodeId();
+		if (id != null) {
+			memberChanged(id, pen.getData());
+		}
 		try {
-			cache.start();
+			if (snapshots != null) {
+				cache.start(PathChildrenCache.StartMode.POST_INITIALIZED_EVENT);
+			} else {
+				cache.start();
+			}
 		} catch (Exception e) {
 			ThreadUtils.checkInterrupted(e);
 			Throwables.propagate(e);
 		}
 	}
 
+	/**
+	 * Start the group membership without waiting. Registering thisId and the
+	 * initial population of the cache go on in the background, so a process
+	 * can start many members at once and wait for them together instead of
+	 * one round trip and one cache build after the other
+	 *
+	 * @return future completed with the membership once this member's node
+	 *         exists and the cache has every member; it fails if the cache
+	 *         cannot be started and is cancelled if the member is closed first
+	 */
+	public CompletableFuture<MembershipView> startAsync() {
+		pen.start();
+		try {
+			cache.start(PathChildrenCache.StartMode.POST_INITIALIZED_EVENT);
+		} catch (Exception e) {
+			ThreadUtils.checkInterrupted(e);
+			ready.completeExceptionally(e);
+		}
+		return ready;
+	}
+
+	/**
+	 * Complete the future of startAsync when both the initial population and
+	 * this member's node have been seen by the cache
+	 */
+	private void checkReady() {
+		if (!initialized || ready.isDone()) {
+			return;
+		}
+		String path = pen.getActualPath();
+		if (path != null && cache.getCurrentData(path) != null) {
+			ready.complete(tracker.getView());
+		}
+	}
+
 	/**
 	 * Change the data stored in this instance's node
 	 *
@@ -95,6 +417,10 @@ public class GroupMember implements Closeable {
 	public void setThisData(byte[] data) {
 		try {
 			pen.setData(data);
+			String id = tracker.nodeId();
+			if (id != null) {
+				memberChanged(id, data);
+			}
 		} catch (Exception e) {
 			ThreadUtils.checkInterrupted(e);
 			Throwables.propagate(e);
@@ -106,29 +432,265 @@ public class GroupMember implements Closeable {
 	 */
 	@Override
 	public void close() {
+		if (snapshots != null) {
+			// Behind any pending save, so the final view is the one written
+			try {
+				snapshotWriter.submit(new Runnable() {
+					@Override
+					public void run() {
+						saveSnapshot();
+					}
+				}).get();
+			} catch (Exception e) {
+				ThreadUtils.checkInterrupted(e);
+				System.out.println(e.toString());
+			}
+		}
+		ready.cancel(false);
+		leadershipListeners.clear();
+		tracker.close();
 		CloseableUtils.closeQuietly(cache);
 		CloseableUtils.closeQuietly(pen);
 	}
 
 	/**
 	 * Return the current view of membership. The keys are the IDs of the
-	 * members. The values are each member's payload
+	 * members, the names of their nodes; this member is in it once its node
+	 * exists. The values are each member's payload
 	 *
 	 * @return membership
 	 */
 	public Map<String, byte[]> getCurrentMembers() {
-		ImmutableMap.Builder<String, byte[]> builder = ImmutableMap.builder();
-		boolean thisIdAdded = false;
+		return tracker.getView().getMembers();
+	}
+
+	/**
+	 * Return the current snapshot of membership. It is replaced, never
+	 * modified, when the membership changes, so reading it costs a single
+	 * volatile load
+	 *
+	 * @return membership snapshot
+	 */
+	public MembershipView getMembershipView() {
+		return tracker.getView();
+	}
+
+	/**
+	 * Return the payload of a member. With data caching on this is the
+	 * payload in the current view; otherwise it is read from the member's
+	 * node, unless it is among the payloads kept from earlier reads and the
+	 * member has not changed since
+	 *
+	 * @param id
+	 *            member ID, as in the view
+	 * @return payload, or null if there is no such member
+	 */
+	public byte[] getMemberData(String id) throws Exception {
+		if (cacheData) {
+			return tracker.getView().getMembers().get(id);
+		}
+		synchronized (payloads) {
+			byte[] data = payloads.get(id);
+			if (data != null) {
+				return data;
+			}
+		}
+		long version = tracker.getView().getVersion();
+		byte[] data;
+		try {
+			data = client.getData().forPath(ZKPaths.makePath(membershipPath, id));
+		} catch (KeeperException.NoNodeException e) {
+			return null;
+		}
+		synchronized (this) {
+			// Keep it only if no change arrived during the read, as that
+			// change may be newer than what was read
+			if (tracker.getView().getVersion() == version) {
+				synchronized (payloads) {
+					payloads.put(id, data);
+				}
+			}
+		}
+		return data;
+	}
+
+	private void forgetPayload(String id) {
+		synchronized (payloads) {
+			payloads.remove(id);
+		}
+	}
+
+	/**
+	 * @return true if this member is in election mode and is the leader
+	 */
+	public boolean isLeader() {
+		String current = leader;
+		String actualPath = pen.getActualPath();
+		return current != null && actualPath != null && current.equals(idFromPath(actualPath));
+	}
+
+	/**
+	 * Return the leader of the group, as seen in the current view
+	 *
+	 * @return member ID of the leader, or null if there is none or this
+	 *         member is not in election mode
+	 */
+	public String currentLeader() {
+		return leader;
+	}
+
+	/**
+	 * Register a listener for leader changes
+	 *
+	 * @param listener
+	 *            listener
+	 * @param executor
+	 *            executor the listener is called on
+	 */
+	public void addLeadershipListener(LeadershipListener listener, Executor executor) {
+		leadershipListeners.put(listener, executor);
+	}
+
+	/**
+	 * @param listener
+	 *            listener to stop notifying
+	 */
+	public void removeLeadershipListener(LeadershipListener listener) {
+		leadershipListeners.remove(listener);
+	}
+
+	/**
+	 * Track the candidates of the election and tell the listeners when the
+	 * lowest one changes
+	 */
+	private void electionChanged(String id, boolean present) {
+		long sequence = sequenceOf(id);
+		if (!election || sequence < 0) {
+			return;
+		}
+		if (present) {
+			candidates.put(sequence, id);
+		} else {
+			candidates.remove(sequence);
+		}
+		final String next = candidates.isEmpty() ? null : candidates.firstEntry().getValue();
+		if (next == null ? leader == null : next.equals(leader)) {
+			return;
+		}
+		leader = next;
+		final boolean isLeader = isLeader();
+		for (final Map.Entry<LeadershipListener, Executor> entry : leadershipListeners.entrySet()) {
+			entry.getValue().execute(new Runnable() {
+				@Override
+				public void run() {
+					entry.getKey().leaderChanged(next, isLeader);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Given a member ID, return the sequence number of its node
+	 *
+	 * @param id
+	 *            member ID
+	 * @return sequence number, or -1 if the node is not sequential
+	 */
+	static long sequenceOf(String id) {
+		if (id.length() < 10) {
+			return -1;
+		}
+		long sequence = 0;
+		for (int i = id.length() - 10; i < id.length(); i++) {
+			char c = id.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			sequence = sequence * 10 + (c - '0');
+		}
+		return sequence;
+	}
+
+	/**
+	 * Return the listenable of the cache this member keeps of the group, to
+	 * receive the raw cache events without watching the group a second time
+	 *
+	 * @return listenable
+	 */
+	public ListenerContainer<PathChildrenCacheListener> getListenable() {
+		return cache.getListenable();
+	}
+
+	/**
+	 * Register a listener for membership changes. Changes are coalesced for
+	 * up to window after the first one, or until maxChanges are pending, and
+	 * delivered as one delta on executor, so a slow listener holds up neither
+	 * the cache nor other listeners
+	 *
+	 * @param listener
+	 *            listener
+	 * @param executor
+	 *            executor the listener is called on
+	 * @param window
+	 *            longest time a change is held back
+	 * @param unit
+	 *            unit of window
+	 * @param maxChanges
+	 *            number of changes that end a batch early
+	 */
+	public void addMembershipListener(MembershipListener listener, Executor executor, long window, TimeUnit unit,
+			int maxChanges) {
+		tracker.addListener(listener, executor, window, unit, maxChanges);
+	}
+
+	/**
+	 * Register a listener for membership changes, coalesced over 100 ms or
+	 * 1000 changes
+	 *
+	 * @param listener
+	 *            listener
+	 * @param executor
+	 *            executor the listener is called on
+	 */
+	public void addMembershipListener(MembershipListener listener, Executor executor) {
+		addMembershipListener(listener, executor, 100, TimeUnit.MILLISECONDS, 1000);
+	}
+
+	/**
+	 * Stop notifying a listener. Changes not yet delivered to it are dropped
+	 *
+	 * @param listener
+	 *            listener
+	 */
+	public void removeMembershipListener(MembershipListener listener) {
+		tracker.removeListener(listener);
+	}
+
+	private synchronized void memberChanged(String id, byte[] data) {
+		tracker.changed(id, data);
+	}
+
+	private synchronized void memberRemoved(String id) {
+		tracker.removed(id);
+	}
+
+	/**
+	 * Build the view of membership from the cache, as getCurrentMembers did
+	 * before the snapshot was kept up to date by the cache listener
+	 *
+	 * @return membership
+	 */
+	Map<String, byte[]> buildCurrentMembers() {
+		Map<String, byte[]> members = new HashMap<String, byte[]>();
 		for (ChildData data : cache.getCurrentData()) {
-			String id = idFromPath(data.getPath());
-			thisIdAdded = thisIdAdded || id.equals(thisId);
-			builder.put(id, data.getData());
+			members.put(idFromPath(data.getPath()), data.getData());
 		}
-		if (!thisIdAdded) {
-			builder.put(thisId, pen.getData()); // this instance is always a
-			// member
+		String own = tracker.nodeId();
+		if (own != null && !members.containsKey(own)) {
+			members.put(own, pen.getData()); // this instance is always a
+												// member
 		}
-		return builder.build();
+		return ImmutableMap.copyOf(members);
 	}
 
 	/**
@@ -155,40 +717,36 @@ public class GroupMember implements Closeable {
 	}
 
 	protected static PathChildrenCache newPathChildrenCache(CuratorFramework client, String membershipPath) {
-		return new PathChildrenCache(client, membershipPath, true);
+		return newPathChildrenCache(client, membershipPath, true);
 	}
 
-	private static void addListener(PathChildrenCache cache) {
-		PathChildrenCacheListener listener = new PathChildrenCacheListener() {
-			// @Override
-			public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
-				switch (event.getType()) {
-				case CHILD_ADDED: {
-					String temp = ZKPaths.getNodeFromPath(event.getData().getPath()).toString();
-					System.out.println("New member entered the group: " + temp.substring(40));
-					break;
-				}
-				case CHILD_UPDATED: {
-					String temp = ZKPaths.getNodeFromPath(event.getData().getPath()).toString();
-					System.out.println("Node changed: " + temp.substring(40));
-					break;
-				}
-				case CHILD_REMOVED: {
-					String temp = ZKPaths.getNodeFromPath(event.getData().getPath()).toString();
-					System.out.println("A member left the group: " + temp.substring(40));
-					break;
-				}
-				default:
-					break;
-				}
-			}
-		};
-		cache.getListenable().addListener(listener);
+	protected static PathChildrenCache newPathChildrenCache(CuratorFramework client, String membershipPath,
+			boolean cacheData) {
+		return new PathChildrenCache(client, membershipPath, cacheData);
+	}
+
+	/**
+	 * Print the members that entered, changed or left the group
+	 */
+	private static void printDelta(MembershipDelta delta) {
+		for (String id : delta.getAdded().keySet()) {
+			System.out.println("New member entered the group: " + GroupIndex.nameOf(id));
+		}
+		for (String id : delta.getUpdated().keySet()) {
+			System.out.println("Node changed: " + GroupIndex.nameOf(id));
+		}
+		for (String id : delta.getRemoved()) {
+			System.out.println("A member left the group: " + GroupIndex.nameOf(id));
+		}
 	}
 
 	public static void main(String args[]) throws Exception {
+		// One session shared by every action and every joined member
+		CuratorFramework zkc = SharedClients.acquire("localhost:2181, localhost:2182, localhost:2183");
+		// Group name -> node name, kept current by a watch on /groups
+		GroupIndex groups = new GroupIndex(zkc, "/groups");
+		groups.start();
 		while (true) {
-			HashMap<String, String> groups_cache = new HashMap<String, String>();
 			System.out.println(
 					"Choose one of the following options by entering the proper number:\n 1.Create a group\n 2.Join a group\n 3.List all current groups\n");
 			Scanner scanner_choice = new Scanner(System.in);
@@ -205,16 +763,7 @@ public class GroupMember implements Closeable {
 				Scanner scanner_payload = new Scanner(System.in);
 				String payload = scanner_payload.next();
 				byte[] b_group = payload.getBytes();
-				CuratorFramework zkc = CuratorFrameworkFactory.newClient(
-						"localhost:2181, localhost:2182, localhost:2183", new ExponentialBackoffRetry(1000, 5));
-				zkc.start();
-				List<String> group_names = zkc.getChildren().forPath("/groups");
-				int i;
-				for (i = 0; i < group_names.size(); i++) {
-					if (Objects.equals(group_names.get(i).substring(40), gname) == true)
-						break;
-				}
-				if (i == group_names.size()) {
+				if (groups.nodeOf(gname) == null) {
 					PersistentNode group_node = newPersistentNode(zkc, "/groups", gname, b_group);
 					group_node.start();
 					try {
@@ -229,29 +778,17 @@ public class GroupMember implements Closeable {
 				System.out.println("Enter the name of the group you want to join:\n");
 				Scanner scanner_joinname = new Scanner(System.in);
 				String joinname = scanner_joinname.next();
-				String real_name = null;
-				CuratorFramework zkc1 = CuratorFrameworkFactory.newClient(
-						"localhost:2181, localhost:2182, localhost:2183", new ExponentialBackoffRetry(1000, 5));
-				zkc1.start();
-				if (groups_cache.get(joinname) != null)
-					real_name = groups_cache.get(joinname);
-				else {
-					List<String> children = zkc1.getChildren().forPath("/groups");
-					for (int j = 0; j < children.size(); j++) {
-						if (Objects.equals(children.get(j).substring(40), joinname) == true) {
-							real_name = children.get(j);
-							break;
-						}
-					}
-				}
+				String real_name = groups.nodeOf(joinname);
 				if (real_name == null)
 					System.out.println("No such group exists");
 				else {
-					List<String> number_list = zkc1.getChildren().forPath("/groups/" + real_name);
-					int number = number_list.size();
-					String t = new String(zkc1.getData().forPath("/groups/" + real_name), Charset.forName("UTF-8"));
+					Stat group_stat = new Stat();
+					String t = new String(zkc.getData().storingStatIn(group_stat).forPath("/groups/" + real_name),
+							Charset.forName("UTF-8"));
 					String[] splited = t.split("-");
-					boolean empty_space = number < Integer.parseInt(splited[0]);
+					int capacity = Integer.parseInt(splited[0]);
+					// Only a hint; the join below checks the limit again
+					boolean empty_space = group_stat.getNumChildren() < capacity;
 					boolean age_limit = Objects.equals(splited[1], "yes");
 
 					if (empty_space) {
@@ -263,13 +800,19 @@ public class GroupMember implements Closeable {
 						String payload2 = scanner_payload2.next();
 						byte[] b = payload2.getBytes();
 						boolean underaged = Integer.parseInt(payload2) < 18;
-						if ((!age_limit) || (!underaged)) {
-							GroupMember gm = new GroupMember(zkc1, "/groups/" + real_name, id, b);
-							gm.start();
-							PathChildrenCache cache_temp = null;
-							cache_temp = newPathChildrenCache(zkc1, "/groups/" + real_name);
-							cache_temp.start();
-							addListener(cache_temp);
+						GroupMember gm = null;
+						if ((!age_limit) || (!underaged))
+							gm = joinWithCapacity(zkc, "/groups/" + real_name, id, b, capacity);
+						if (gm != null) {
+							// Changes are printed in batches, off the cache's event
+							// thread
+							ExecutorService notifications = Executors.newSingleThreadExecutor();
+							gm.addMembershipListener(new MembershipListener() {
+								@Override
+								public void membershipChanged(MembershipDelta delta) {
+									printDelta(delta);
+								}
+							}, notifications);
 							// try {
 							// Thread.sleep(50000);
 							// } catch(InterruptedException e){}
@@ -282,8 +825,8 @@ public class GroupMember implements Closeable {
 								switch (choice2) {
 								case "1":
 									temp = 1;
-									cache_temp.close();
 									gm.close();
+									notifications.shutdown();
 									break;
 								case "2":
 									for (String element : gm.getCurrentMembers().keySet()) {
@@ -297,6 +840,9 @@ public class GroupMember implements Closeable {
 									break;
 							}
 						}
+						else if ((!age_limit) || (!underaged)) {
+							System.out.println("No space left in this group");
+						}
 						else{
 							System.out.println("Age not valid");
 						}
@@ -307,15 +853,8 @@ public class GroupMember implements Closeable {
 				}
 				break;
 			case "3":
-				CuratorFramework zkc2 = CuratorFrameworkFactory.newClient(
-						"localhost:2181, localhost:2182, localhost:2183", new ExponentialBackoffRetry(1000, 5));
-				zkc2.start();
-				List<String> children = zkc2.getChildren().forPath("/groups");
-				for (int j = 0; j < children.size(); j++) {
-					System.out.println(children.get(j).substring(40));
-					if (groups_cache.get(children.get(j).substring(40)) == null) {
-						groups_cache.put(children.get(j).substring(40), children.get(j));
-					}
+				for (String name : groups.names()) {
+					System.out.println(name);
 				}
 				break;
 			}
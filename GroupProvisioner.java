@@ -0,0 +1,185 @@
+package org.apache.curator.framework.recipes.nodes;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.AsyncCallback.MultiCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates many groups at once. The names are checked against one listing of
+ * the groups node, and the new group nodes are created in multi transactions
+ * that are pipelined, with a bounded number in flight, instead of one
+ * PersistentNode and one blocking wait per group. Group nodes get the same
+ * 40 character protected prefix as groups created one at a time, so they
+ * resolve through GroupIndex like any other group
+ */
+public class GroupProvisioner {
+	private final CuratorFramework client;
+	private final String groupsPath;
+	private int batchSize = 100;
+	private int maxInFlight = 8;
+
+	/**
+	 * Outcome of a provisioning run
+	 */
+	public static class Result {
+		private final int created;
+		private final int skipped;
+		private final int failed;
+		private final long elapsedNanos;
+
+		Result(int created, int skipped, int failed, long elapsedNanos) {
+			this.created = created;
+			this.skipped = skipped;
+			this.failed = failed;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		/**
+		 * @return number of groups created
+		 */
+		public int getCreated() {
+			return created;
+		}
+
+		/**
+		 * @return number of names that already existed or were repeated
+		 */
+		public int getSkipped() {
+			return skipped;
+		}
+
+		/**
+		 * @return number of groups in batches the server rejected
+		 */
+		public int getFailed() {
+			return failed;
+		}
+
+		/**
+		 * @return duration of the run in nanoseconds
+		 */
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/**
+		 * @return groups created per second
+		 */
+		public long getThroughput() {
+			return elapsedNanos == 0 ? 0 : created * 1000000000L / elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return created + " created, " + skipped + " skipped, " + failed + " failed in " + elapsedNanos / 1000000
+					+ " ms (" + getThroughput() + " groups/s)";
+		}
+	}
+
+	/**
+	 * @param client
+	 *            client
+	 * @param groupsPath
+	 *            the parent node of the groups
+	 */
+	public GroupProvisioner(CuratorFramework client, String groupsPath) {
+		this.client = client;
+		this.groupsPath = groupsPath;
+	}
+
+	/**
+	 * @param batchSize
+	 *            number of groups created by one multi transaction
+	 * @return this
+	 */
+	public GroupProvisioner batchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+		return this;
+	}
+
+	/**
+	 * @param maxInFlight
+	 *            number of multi transactions kept in flight at once
+	 * @return this
+	 */
+	public GroupProvisioner maxInFlight(int maxInFlight) {
+		this.maxInFlight = Math.max(1, maxInFlight);
+		return this;
+	}
+
+	/**
+	 * Create a group for every name that is not taken yet
+	 *
+	 * @param names
+	 *            group names, possibly repeated
+	 * @param payload
+	 *            data of every new group node
+	 * @return counts and duration of the run
+	 */
+	public Result provision(Iterable<String> names, byte[] payload) throws Exception {
+		long start = System.nanoTime();
+		if (client.checkExists().forPath(groupsPath) == null) {
+			client.create().creatingParentsIfNeeded().forPath(groupsPath);
+		}
+		Set<String> existing = new HashSet<String>();
+		for (String node : client.getChildren().forPath(groupsPath)) {
+			existing.add(GroupIndex.nameOf(node));
+		}
+		Set<String> fresh = new LinkedHashSet<String>();
+		int skipped = 0;
+		for (String name : names) {
+			if (existing.contains(name) || !fresh.add(name)) {
+				skipped++;
+			}
+		}
+
+		final AtomicInteger created = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		MultiCallback cb = new MultiCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, List<OpResult> results) {
+				if (rc == Code.OK.intValue()) {
+					created.addAndGet((Integer) ctx);
+				} else {
+					failed.addAndGet((Integer) ctx);
+				}
+				inFlight.release();
+			}
+		};
+
+		ZooKeeper zk = client.getZookeeperClient().getZooKeeper();
+		List<Op> ops = new ArrayList<Op>(batchSize);
+		for (String name : fresh) {
+			String path = ZKPaths.makePath(groupsPath, "_c_" + UUID.randomUUID() + "-" + name);
+			ops.add(Op.create(path, payload, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+			if (ops.size() == batchSize) {
+				inFlight.acquire();
+				zk.multi(ops, cb, ops.size());
+				ops = new ArrayList<Op>(batchSize);
+			}
+		}
+		if (!ops.isEmpty()) {
+			inFlight.acquire();
+			zk.multi(ops, cb, ops.size());
+		}
+		// Wait for the batches still in flight
+		inFlight.acquire(maxInFlight);
+		inFlight.release(maxInFlight);
+		return new Result(created.get(), skipped, failed.get(), System.nanoTime() - start);
+	}
+}
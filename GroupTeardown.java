@@ -0,0 +1,208 @@
+package org.apache.curator.framework.recipes.nodes;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.MultiCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooKeeper;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Removes every member from every group. The member lists of all groups are
+ * fetched with pipelined asynchronous calls, and the members are deleted in
+ * multi transactions with a bounded number in flight. Members that disappear
+ * while the teardown runs, because they left or another teardown got them
+ * first, are dropped from their batch and the rest of the batch is retried,
+ * so running it twice, or next to leaving members, is harmless
+ */
+public class GroupTeardown {
+	private final CuratorFramework client;
+	private final String groupsPath;
+	private int batchSize = 100;
+	private int maxInFlight = 8;
+
+	/**
+	 * Outcome of a teardown
+	 */
+	public static class Result {
+		private final int groups;
+		private final int deleted;
+		private final int vanished;
+		private final int failed;
+		private final long elapsedNanos;
+
+		Result(int groups, int deleted, int vanished, int failed, long elapsedNanos) {
+			this.groups = groups;
+			this.deleted = deleted;
+			this.vanished = vanished;
+			this.failed = failed;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		/**
+		 * @return number of groups visited
+		 */
+		public int getGroups() {
+			return groups;
+		}
+
+		/**
+		 * @return number of members deleted
+		 */
+		public int getDeleted() {
+			return deleted;
+		}
+
+		/**
+		 * @return number of members that were gone before their delete ran
+		 */
+		public int getVanished() {
+			return vanished;
+		}
+
+		/**
+		 * @return number of members in batches that failed for another
+		 *         reason
+		 */
+		public int getFailed() {
+			return failed;
+		}
+
+		/**
+		 * @return duration of the teardown in nanoseconds
+		 */
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return deleted + " members deleted from " + groups + " groups (" + vanished + " already gone, " + failed
+					+ " failed) in " + elapsedNanos / 1000000 + " ms";
+		}
+	}
+
+	/**
+	 * @param client
+	 *            client
+	 * @param groupsPath
+	 *            the parent node of the groups
+	 */
+	public GroupTeardown(CuratorFramework client, String groupsPath) {
+		this.client = client;
+		this.groupsPath = groupsPath;
+	}
+
+	/**
+	 * @param batchSize
+	 *            number of members deleted by one multi transaction
+	 * @return this
+	 */
+	public GroupTeardown batchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+		return this;
+	}
+
+	/**
+	 * @param maxInFlight
+	 *            number of requests kept in flight at once
+	 * @return this
+	 */
+	public GroupTeardown maxInFlight(int maxInFlight) {
+		this.maxInFlight = Math.max(1, maxInFlight);
+		return this;
+	}
+
+	/**
+	 * Delete the members of all groups, leaving the groups in place
+	 *
+	 * @return counts and duration of the teardown
+	 */
+	public Result teardown() throws Exception {
+		long start = System.nanoTime();
+		if (client.checkExists().forPath(groupsPath) == null) {
+			return new Result(0, 0, 0, 0, System.nanoTime() - start);
+		}
+		final ZooKeeper zk = client.getZookeeperClient().getZooKeeper();
+		List<String> groups = client.getChildren().forPath(groupsPath);
+
+		// Member lists of all groups, fetched in parallel
+		final ConcurrentLinkedQueue<String> members = new ConcurrentLinkedQueue<String>();
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		ChildrenCallback listed = new ChildrenCallback() {
+			@Override
+			public void processResult(int rc, String path, Object ctx, List<String> children) {
+				if (rc == Code.OK.intValue()) {
+					for (String child : children) {
+						members.add(ZKPaths.makePath(path, child));
+					}
+				}
+				// a group removed meanwhile has no members to delete
+				inFlight.release();
+			}
+		};
+		for (String group : groups) {
+			inFlight.acquire();
+			zk.getChildren(ZKPaths.makePath(groupsPath, group), false, listed, null);
+		}
+		inFlight.acquire(maxInFlight);
+		inFlight.release(maxInFlight);
+
+		final AtomicInteger deleted = new AtomicInteger();
+		final AtomicInteger vanished = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		MultiCallback cb = new MultiCallback() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public void processResult(int rc, String path, Object ctx, List<OpResult> results) {
+				List<Op> ops = (List<Op>) ctx;
+				if (rc == Code.OK.intValue()) {
+					deleted.addAndGet(ops.size());
+				} else if (rc == Code.NONODE.intValue() && results != null && results.size() == ops.size()) {
+					// Drop the members that are already gone and try the rest
+					// again, keeping the permit of this batch
+					List<Op> retry = new ArrayList<Op>(ops.size());
+					for (int i = 0; i < ops.size(); i++) {
+						OpResult result = results.get(i);
+						if (result instanceof OpResult.ErrorResult
+								&& ((OpResult.ErrorResult) result).getErr() == Code.NONODE.intValue()) {
+							vanished.incrementAndGet();
+						} else {
+							retry.add(ops.get(i));
+						}
+					}
+					if (!retry.isEmpty()) {
+						zk.multi(retry, this, retry);
+						return;
+					}
+				} else {
+					failed.addAndGet(ops.size());
+				}
+				inFlight.release();
+			}
+		};
+		List<Op> ops = new ArrayList<Op>(batchSize);
+		for (String member : members) {
+			ops.add(Op.delete(member, -1));
+			if (ops.size() == batchSize) {
+				inFlight.acquire();
+				zk.multi(ops, cb, ops);
+				ops = new ArrayList<Op>(batchSize);
+			}
+		}
+		if (!ops.isEmpty()) {
+			inFlight.acquire();
+			zk.multi(ops, cb, ops);
+		}
+		inFlight.acquire(maxInFlight);
+		inFlight.release(maxInFlight);
+		return new Result(groups.size(), deleted.get(), vanished.get(), failed.get(), System.nanoTime() - start);
+	}
+}
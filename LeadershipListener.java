@@ -0,0 +1,16 @@
+package org.apache.curator.framework.recipes.nodes;
+
+/**
+ * Receives leader changes from a GroupMember in election mode
+ */
+public interface LeadershipListener {
+	/**
+	 * Called when the group's leader changes
+	 *
+	 * @param leader
+	 *            member ID of the new leader, null if the group has none
+	 * @param isLeader
+	 *            whether the new leader is this member
+	 */
+	void leaderChanged(String leader, boolean isLeader);
+}
@@ -0,0 +1,71 @@
+package org.apache.curator.framework.recipes.nodes;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Net change of the membership of a group over a batch of events. A member
+ * that joined and left within the batch does not appear at all, one that
+ * left and joined again appears as updated
+ */
+public class MembershipDelta {
+	private final ImmutableMap<String, byte[]> added;
+	private final ImmutableSet<String> removed;
+	private final ImmutableMap<String, byte[]> updated;
+	private final long version;
+
+	/**
+	 * @param added
+	 *            members that joined, with their payload
+	 * @param removed
+	 *            IDs of the members that left
+	 * @param updated
+	 *            members whose payload changed, with the new payload
+	 * @param version
+	 *            version of the membership view after the batch
+	 */
+	public MembershipDelta(Map<String, byte[]> added, Set<String> removed, Map<String, byte[]> updated,
+			long version) {
+		this.added = ImmutableMap.copyOf(added);
+		this.removed = ImmutableSet.copyOf(removed);
+		this.updated = ImmutableMap.copyOf(updated);
+		this.version = version;
+	}
+
+	/**
+	 * @return members that joined, keyed by ID
+	 */
+	public Map<String, byte[]> getAdded() {
+		return added;
+	}
+
+	/**
+	 * @return IDs of the members that left
+	 */
+	public Set<String> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * @return members whose payload changed, keyed by ID
+	 */
+	public Map<String, byte[]> getUpdated() {
+		return updated;
+	}
+
+	/**
+	 * @return version of the membership view after the batch
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return true if the batch had no net effect
+	 */
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty() && updated.isEmpty();
+	}
+}
@@ -0,0 +1,15 @@
+package org.apache.curator.framework.recipes.nodes;
+
+/**
+ * Receives batched membership changes from a GroupMember
+ */
+public interface MembershipListener {
+	/**
+	 * Called with the net change of a batch of membership events. Calls for
+	 * one listener never overlap and arrive in order
+	 *
+	 * @param delta
+	 *            the change
+	 */
+	void membershipChanged(MembershipDelta delta);
+}
@@ -0,0 +1,161 @@
+package org.apache.curator.framework.recipes.nodes;
+
+import org.apache.curator.utils.ThreadUtils;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the membership changes seen by a GroupMember for one listener.
+ * Changes are folded into a pending delta, which is handed to the listener's
+ * executor once the window has passed since the first pending change or
+ * once maxChanges changes are pending, whichever comes first. Deltas are
+ * delivered one at a time and in order, and the cache's event thread only
+ * ever does the folding
+ */
+class MembershipNotifier {
+	private static final ScheduledExecutorService timer = Executors
+			.newSingleThreadScheduledExecutor(ThreadUtils.newThreadFactory("MembershipNotifier"));
+
+	private final MembershipListener listener;
+	private final Executor executor;
+	private final long windowNanos;
+	private final int maxChanges;
+
+	// Pending delta, guarded by this
+	private Map<String, byte[]> added = new HashMap<String, byte[]>();
+	private Set<String> removed = new HashSet<String>();
+	private Map<String, byte[]> updated = new HashMap<String, byte[]>();
+	private long version;
+	private int changes;
+	private ScheduledFuture<?> scheduled;
+	private boolean closed;
+
+	// Deltas waiting for the listener, and whether a delivery task is
+	// running; guarded by this
+	private final ArrayDeque<MembershipDelta> ready = new ArrayDeque<MembershipDelta>();
+	private boolean delivering;
+
+	private final Runnable flush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	private final Runnable deliver = new Runnable() {
+		@Override
+		public void run() {
+			while (true) {
+				MembershipDelta delta;
+				synchronized (MembershipNotifier.this) {
+					delta = ready.poll();
+					if (delta == null) {
+						delivering = false;
+						return;
+					}
+				}
+				try {
+					listener.membershipChanged(delta);
+				} catch (RuntimeException e) {
+					System.out.println(e.toString());
+				}
+			}
+		}
+	};
+
+	MembershipNotifier(MembershipListener listener, Executor executor, long window, TimeUnit unit, int maxChanges) {
+		this.listener = listener;
+		this.executor = executor;
+		this.windowNanos = unit.toNanos(window);
+		this.maxChanges = Math.max(1, maxChanges);
+	}
+
+	MembershipListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * A member joined or changed its payload
+	 *
+	 * @param existed
+	 *            whether the member was in the view before this change
+	 */
+	synchronized void changed(String id, byte[] data, boolean existed, long version) {
+		if (closed) {
+			return;
+		}
+		if (removed.remove(id) || updated.containsKey(id)) {
+			updated.put(id, data);
+		} else if (added.containsKey(id) || !existed) {
+			added.put(id, data);
+		} else {
+			updated.put(id, data);
+		}
+		pending(version);
+	}
+
+	/**
+	 * A member that was in the view left
+	 */
+	synchronized void removed(String id, long version) {
+		if (closed) {
+			return;
+		}
+		if (added.remove(id) == null) {
+			updated.remove(id);
+			removed.add(id);
+		}
+		pending(version);
+	}
+
+	private void pending(long version) {
+		this.version = version;
+		if (++changes >= maxChanges) {
+			flush();
+		} else if (scheduled == null) {
+			scheduled = timer.schedule(flush, windowNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	synchronized void flush() {
+		if (scheduled != null) {
+			scheduled.cancel(false);
+			scheduled = null;
+		}
+		if (changes == 0) {
+			return;
+		}
+		MembershipDelta delta = new MembershipDelta(added, removed, updated, version);
+		added = new HashMap<String, byte[]>();
+		removed = new HashSet<String>();
+		updated = new HashMap<String, byte[]>();
+		changes = 0;
+		if (delta.isEmpty()) {
+			return;
+		}
+		ready.add(delta);
+		if (!delivering) {
+			delivering = true;
+			executor.execute(deliver);
+		}
+	}
+
+	/**
+	 * Stop notifying. Changes still pending are dropped
+	 */
+	synchronized void close() {
+		closed = true;
+		if (scheduled != null) {
+			scheduled.cancel(false);
+			scheduled = null;
+		}
+	}
+}
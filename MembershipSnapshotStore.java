@@ -0,0 +1,146 @@
+package org.apache.curator.framework.recipes.nodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk snapshot of the membership of a group, so a restarted member can
+ * serve the last known membership before ZooKeeper has answered. The file is
+ * written to a temporary file and renamed over the old one, so a crash
+ * leaves either snapshot intact, and it is read and written through a
+ * memory mapping. Each snapshot is stamped with the cversion and pzxid of
+ * the group node, read before the membership was taken
+ */
+public class MembershipSnapshotStore {
+	private static final int MAGIC = 0x474d5331; // "GMS1"
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+
+	/**
+	 * A membership read back from the store
+	 */
+	public static class Snapshot {
+		private final Map<String, byte[]> members;
+		private final int cversion;
+		private final long pzxid;
+
+		Snapshot(Map<String, byte[]> members, int cversion, long pzxid) {
+			this.members = members;
+			this.cversion = cversion;
+			this.pzxid = pzxid;
+		}
+
+		/**
+		 * @return the members, keyed by ID
+		 */
+		public Map<String, byte[]> getMembers() {
+			return members;
+		}
+
+		/**
+		 * @return cversion of the group node when the snapshot was taken
+		 */
+		public int getCversion() {
+			return cversion;
+		}
+
+		/**
+		 * @return pzxid of the group node when the snapshot was taken
+		 */
+		public long getPzxid() {
+			return pzxid;
+		}
+	}
+
+	/**
+	 * @param file
+	 *            the snapshot file
+	 */
+	public MembershipSnapshotStore(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Replace the snapshot
+	 *
+	 * @param members
+	 *            the members, keyed by ID
+	 * @param cversion
+	 *            cversion of the group node
+	 * @param pzxid
+	 *            pzxid of the group node
+	 */
+	public void save(Map<String, byte[]> members, int cversion, long pzxid) throws IOException {
+		int size = 4 + 4 + 8 + 4;
+		List<byte[]> ids = new ArrayList<byte[]>(members.size());
+		List<byte[]> payloads = new ArrayList<byte[]>(members.size());
+		for (Map.Entry<String, byte[]> entry : members.entrySet()) {
+			byte[] id = entry.getKey().getBytes(UTF8);
+			byte[] payload = entry.getValue() != null ? entry.getValue() : new byte[0];
+			ids.add(id);
+			payloads.add(payload);
+			size += 4 + id.length + 4 + payload.length;
+		}
+		File temp = new File(file.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		try {
+			out.setLength(size);
+			MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.putInt(MAGIC).putInt(cversion).putLong(pzxid).putInt(ids.size());
+			for (int i = 0; i < ids.size(); i++) {
+				buffer.putInt(ids.get(i).length).put(ids.get(i));
+				buffer.putInt(payloads.get(i).length).put(payloads.get(i));
+			}
+			buffer.force();
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Read the snapshot
+	 *
+	 * @return the snapshot, or null if there is none or it is not readable
+	 */
+	public Snapshot load() throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+			if (buffer.remaining() < 20 || buffer.getInt() != MAGIC) {
+				return null;
+			}
+			int cversion = buffer.getInt();
+			long pzxid = buffer.getLong();
+			int count = buffer.getInt();
+			Map<String, byte[]> members = new HashMap<String, byte[]>();
+			for (int i = 0; i < count; i++) {
+				byte[] id = new byte[buffer.getInt()];
+				buffer.get(id);
+				byte[] payload = new byte[buffer.getInt()];
+				buffer.get(payload);
+				members.put(new String(id, UTF8), payload);
+			}
+			return new Snapshot(members, cversion, pzxid);
+		} catch (RuntimeException e) {
+			// truncated or corrupt
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+}
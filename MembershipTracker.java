@@ -0,0 +1,145 @@
+package org.apache.curator.framework.recipes.nodes;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Membership view of a group and the listeners of its changes, kept from the
+ * cache events of a member. The member's own node enters the view under its
+ * node ID once it exists and stays there while the persistent node
+ * recreates it. Members that join, change or leave are passed on to the
+ * hooks and to the listeners. Not thread safe: the owner serializes the
+ * calls that change the view
+ */
+class MembershipTracker {
+	private final PersistentNode pen;
+	private volatile MembershipView view = new MembershipView(ImmutableMap.<String, byte[]> of(), 0);
+	// ID of the member's own node in the view, once the node has been seen
+	private String ownId;
+	private final List<MembershipNotifier> notifiers = new CopyOnWriteArrayList<MembershipNotifier>();
+
+	/**
+	 * @param pen
+	 *            the member's own node
+	 */
+	MembershipTracker(PersistentNode pen) {
+		this.pen = pen;
+	}
+
+	/**
+	 * @return current snapshot of membership
+	 */
+	MembershipView getView() {
+		return view;
+	}
+
+	/**
+	 * Replace the view without telling the hooks or the listeners
+	 *
+	 * @param members
+	 *            member IDs and payloads
+	 */
+	void setView(Map<String, byte[]> members) {
+		view = new MembershipView(members, view.getVersion() + 1);
+	}
+
+	/**
+	 * @return ID of the member's own node, or null if it has not been created
+	 */
+	String nodeId() {
+		String actualPath = pen.getActualPath();
+		return actualPath != null ? GroupMember.idFromPath(actualPath) : null;
+	}
+
+	/**
+	 * A member joined or changed its payload
+	 *
+	 * @param id
+	 *            member ID
+	 * @param data
+	 *            payload, null if not cached
+	 */
+	void changed(String id, byte[] data) {
+		if (!id.equals(ownId) && id.equals(nodeId())) {
+			// The own node, recreated under a new name if it is sequential;
+			// the old name is gone
+			String old = ownId;
+			ownId = id;
+			if (old != null) {
+				removed(old);
+			}
+		}
+		boolean existed = view.getMembers().containsKey(id);
+		// Cache events that repeat what the view has, as when the cache
+		// catches up with a snapshot, change nothing; without data an update
+		// cannot be compared and always counts
+		if (existed && data != null && Arrays.equals(view.getMembers().get(id), data)) {
+			return;
+		}
+		view = view.with(id, data);
+		memberChanged(id);
+		for (MembershipNotifier notifier : notifiers) {
+			notifier.changed(id, view.getMembers().get(id), existed, view.getVersion());
+		}
+	}
+
+	/**
+	 * A member left
+	 *
+	 * @param id
+	 *            member ID
+	 */
+	void removed(String id) {
+		if (id.equals(ownId)) {
+			// the member is always in its group; the node is recreated
+			return;
+		}
+		if (view.getMembers().containsKey(id)) {
+			view = view.without(id);
+			memberRemoved(id);
+			for (MembershipNotifier notifier : notifiers) {
+				notifier.removed(id, view.getVersion());
+			}
+		}
+	}
+
+	/**
+	 * Called when a member has joined or changed, after the view has
+	 */
+	protected void memberChanged(String id) {
+	}
+
+	/**
+	 * Called when a member has left, after the view has
+	 */
+	protected void memberRemoved(String id) {
+	}
+
+	void addListener(MembershipListener listener, Executor executor, long window, TimeUnit unit, int maxChanges) {
+		notifiers.add(new MembershipNotifier(listener, executor, window, unit, maxChanges));
+	}
+
+	void removeListener(MembershipListener listener) {
+		for (MembershipNotifier notifier : notifiers) {
+			if (notifier.getListener() == listener) {
+				notifier.close();
+				notifiers.remove(notifier);
+			}
+		}
+	}
+
+	/**
+	 * Stop notifying all listeners
+	 */
+	void close() {
+		for (MembershipNotifier notifier : notifiers) {
+			notifier.close();
+		}
+		notifiers.clear();
+	}
+}
@@ -0,0 +1,73 @@
+package org.apache.curator.framework.recipes.nodes;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the membership of a group. The keys are the IDs of
+ * the members, the values are each member's payload. The version grows with
+ * every change applied to the membership
+ */
+public class MembershipView {
+	private static final byte[] NO_DATA = new byte[0];
+
+	private final ImmutableMap<String, byte[]> members;
+	private final long version;
+
+	/**
+	 * @param members
+	 *            member IDs and payloads
+	 * @param version
+	 *            version of this snapshot
+	 */
+	public MembershipView(Map<String, byte[]> members, long version) {
+		this.members = ImmutableMap.copyOf(members);
+		this.version = version;
+	}
+
+	/**
+	 * @return the members of the group, keyed by ID
+	 */
+	public Map<String, byte[]> getMembers() {
+		return members;
+	}
+
+	/**
+	 * @return version of this snapshot
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Return the next snapshot, with id added or its payload replaced
+	 *
+	 * @param id
+	 *            member ID
+	 * @param payload
+	 *            member payload, null if not known
+	 * @return new snapshot
+	 */
+	MembershipView with(String id, byte[] payload) {
+		Map<String, byte[]> next = new HashMap<String, byte[]>(members);
+		next.put(id, payload != null ? payload : NO_DATA);
+		return new MembershipView(next, version + 1);
+	}
+
+	/**
+	 * Return the next snapshot, without id
+	 *
+	 * @param id
+	 *            member ID
+	 * @return new snapshot
+	 */
+	MembershipView without(String id) {
+		if (!members.containsKey(id)) {
+			return this;
+		}
+		Map<String, byte[]> next = new HashMap<String, byte[]>(members);
+		next.remove(id);
+		return new MembershipView(next, version + 1);
+	}
+}
@@ -0,0 +1,250 @@
+package org.apache.curator.framework.recipes.nodes;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.utils.ThreadUtils;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import java.io.Closeable;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group membership for very large groups. Members are spread by a hash of
+ * their ID over a fixed number of bucket nodes under the group, and the
+ * membership is kept by one cache per bucket whose views are merged. A join
+ * or leave then fires the child watch of one bucket only, and the watchers
+ * fetch that bucket's child list instead of the list of the whole group,
+ * which also keeps every listing far below the jute buffer limit. All
+ * members of a group must use the same number of buckets
+ */
+public class ShardedGroupMember implements Closeable {
+	private final CuratorFramework client;
+	private final String membershipPath;
+	private final int buckets;
+	private final PersistentNode pen;
+	private final PathChildrenCache[] caches;
+	// View and listeners, as kept by GroupMember; changed only under this
+	private final MembershipTracker tracker;
+
+	/**
+	 * @param client
+	 *            client
+	 * @param membershipPath
+	 *            the path to use for membership
+	 * @param buckets
+	 *            number of bucket nodes under membershipPath
+	 * @param thisId
+	 *            ID of this group member. MUST be unique for the group
+	 * @param payload
+	 *            the payload to write in our member node
+	 * @param cacheData
+	 *            false to cache only the IDs of the members
+	 */
+	public ShardedGroupMember(CuratorFramework client, String membershipPath, int buckets, String thisId,
+			byte[] payload, boolean cacheData) {
+		this.client = client;
+		this.membershipPath = membershipPath;
+		this.buckets = Math.max(1, buckets);
+		Preconditions.checkNotNull(thisId, "thisId cannot be null");
+		pen = new PersistentNode(client, CreateMode.EPHEMERAL, true,
+				ZKPaths.makePath(bucketPath(membershipPath, bucketOf(thisId, this.buckets)), thisId), payload);
+		tracker = new MembershipTracker(pen);
+		PathChildrenCacheListener listener = new PathChildrenCacheListener() {
+			@Override
+			public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+				switch (event.getType()) {
+				case CHILD_ADDED:
+				case CHILD_UPDATED:
+					memberChanged(GroupMember.idFromPath(event.getData().getPath()), event.getData().getData());
+					break;
+				case CHILD_REMOVED:
+					memberRemoved(GroupMember.idFromPath(event.getData().getPath()));
+					break;
+				default:
+					break;
+				}
+			}
+		};
+		caches = new PathChildrenCache[this.buckets];
+		for (int i = 0; i < this.buckets; i++) {
+			caches[i] = new PathChildrenCache(client, bucketPath(membershipPath, i), cacheData);
+			caches[i].getListenable().addListener(listener);
+		}
+	}
+
+	/**
+	 * Start the group membership. Create the buckets if needed, register
+	 * thisId as a member and begin caching all members
+	 */
+	public void start() {
+		try {
+			createBuckets();
+			pen.start();
+			try {
+				pen.waitForInitialCreate(3, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				System.out.println(e.toString());
+			}
+			String id = tracker.nodeId();
+			if (id != null) {
+				memberChanged(id, pen.getData());
+			}
+			for (PathChildrenCache cache : caches) {
+				cache.start();
+			}
+		} catch (Exception e) {
+			ThreadUtils.checkInterrupted(e);
+			Throwables.propagate(e);
+		}
+	}
+
+	/**
+	 * Create the bucket nodes that do not exist yet: one listing of the
+	 * group, then one transaction for the missing buckets, so once the group
+	 * is set up a member starts with a single round trip
+	 */
+	private void createBuckets() throws Exception {
+		while (true) {
+			Set<String> existing = new HashSet<String>();
+			try {
+				existing.addAll(client.getChildren().forPath(membershipPath));
+			} catch (KeeperException.NoNodeException e) {
+				try {
+					client.create().creatingParentsIfNeeded().forPath(membershipPath);
+				} catch (KeeperException.NodeExistsException ex) {
+					// created by another member
+				}
+			}
+			CuratorTransaction transaction = client.inTransaction();
+			CuratorTransactionFinal missing = null;
+			for (int i = 0; i < buckets; i++) {
+				String bucket = bucketPath(membershipPath, i);
+				if (!existing.contains(ZKPaths.getNodeFromPath(bucket))) {
+					missing = transaction.create().forPath(bucket).and();
+					transaction = missing;
+				}
+			}
+			if (missing == null) {
+				return;
+			}
+			try {
+				missing.commit();
+				return;
+			} catch (KeeperException.NodeExistsException e) {
+				// another member created some of them; list again
+			}
+		}
+	}
+
+	/**
+	 * Change the data stored in this instance's node
+	 *
+	 * @param data
+	 *            new data (cannot be null)
+	 */
+	public void setThisData(byte[] data) {
+		try {
+			pen.setData(data);
+			String id = tracker.nodeId();
+			if (id != null) {
+				memberChanged(id, data);
+			}
+		} catch (Exception e) {
+			ThreadUtils.checkInterrupted(e);
+			Throwables.propagate(e);
+		}
+	}
+
+	/**
+	 * Have thisId leave the group and stop caching membership
+	 */
+	@Override
+	public void close() {
+		tracker.close();
+		for (PathChildrenCache cache : caches) {
+			CloseableUtils.closeQuietly(cache);
+		}
+		CloseableUtils.closeQuietly(pen);
+	}
+
+	/**
+	 * Return the current view of membership over all buckets. The keys are
+	 * the IDs of the members. The values are each member's payload
+	 *
+	 * @return membership
+	 */
+	public Map<String, byte[]> getCurrentMembers() {
+		return tracker.getView().getMembers();
+	}
+
+	/**
+	 * @return membership snapshot over all buckets
+	 */
+	public MembershipView getMembershipView() {
+		return tracker.getView();
+	}
+
+	/**
+	 * Register a listener for membership changes, as
+	 * GroupMember.addMembershipListener does
+	 *
+	 * @param listener
+	 *            listener
+	 * @param executor
+	 *            executor the listener is called on
+	 * @param window
+	 *            longest time a change is held back
+	 * @param unit
+	 *            unit of window
+	 * @param maxChanges
+	 *            number of changes that end a batch early
+	 */
+	public void addMembershipListener(MembershipListener listener, Executor executor, long window, TimeUnit unit,
+			int maxChanges) {
+		tracker.addListener(listener, executor, window, unit, maxChanges);
+	}
+
+	private synchronized void memberChanged(String id, byte[] data) {
+		tracker.changed(id, data);
+	}
+
+	private synchronized void memberRemoved(String id) {
+		tracker.removed(id);
+	}
+
+	/**
+	 * Return the bucket a member ID hashes to
+	 *
+	 * @param id
+	 *            member ID, without the protected prefix
+	 * @param buckets
+	 *            number of buckets
+	 * @return bucket index
+	 */
+	public static int bucketOf(String id, int buckets) {
+		return (int) ((ConsistentHashRing.hash(id) >>> 1) % buckets);
+	}
+
+	/**
+	 * @param membershipPath
+	 *            the path used for membership
+	 * @param index
+	 *            bucket index
+	 * @return path of the bucket
+	 */
+	public static String bucketPath(String membershipPath, int index) {
+		return ZKPaths.makePath(membershipPath, String.format("bucket-%04d", index));
+	}
+}
@@ -0,0 +1,110 @@
+package org.apache.curator.framework.recipes.nodes;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Registry of started CuratorFramework clients shared by connection string.
+ * Any number of GroupMember instances can be multiplexed over one or a few
+ * ZooKeeper sessions instead of opening a session, a connection and a
+ * heartbeat thread each. Every acquire must be paired with a release; a
+ * client is closed when its last user releases it
+ */
+public class SharedClients {
+	private static final Map<String, Pool> pools = new HashMap<String, Pool>();
+	private static final Map<CuratorFramework, Pool> owners = new IdentityHashMap<CuratorFramework, Pool>();
+
+	private static class Pool {
+		final String connectString;
+		final CuratorFramework[] clients;
+		final int[] users;
+		int next;
+
+		Pool(String connectString, int sessions) {
+			this.connectString = connectString;
+			this.clients = new CuratorFramework[sessions];
+			this.users = new int[sessions];
+		}
+	}
+
+	private SharedClients() {
+	}
+
+	/**
+	 * Return the shared client for connectString, starting it if needed
+	 *
+	 * @param connectString
+	 *            ZooKeeper connection string
+	 * @return started client
+	 */
+	public static CuratorFramework acquire(String connectString) {
+		return acquire(connectString, 1);
+	}
+
+	/**
+	 * Return one of the shared clients for connectString, handing the
+	 * sessions out in turn and starting them as needed
+	 *
+	 * @param connectString
+	 *            ZooKeeper connection string
+	 * @param sessions
+	 *            number of sessions to spread the users over; fixed by the
+	 *            first acquire for connectString
+	 * @return started client
+	 */
+	public static synchronized CuratorFramework acquire(String connectString, int sessions) {
+		Pool pool = pools.get(connectString);
+		if (pool == null) {
+			pool = new Pool(connectString, Math.max(1, sessions));
+			pools.put(connectString, pool);
+		}
+		int slot = pool.next;
+		pool.next = (slot + 1) % pool.clients.length;
+		if (pool.clients[slot] == null) {
+			CuratorFramework client = CuratorFrameworkFactory.newClient(connectString,
+					new ExponentialBackoffRetry(1000, 5));
+			client.start();
+			pool.clients[slot] = client;
+			owners.put(client, pool);
+		}
+		pool.users[slot]++;
+		return pool.clients[slot];
+	}
+
+	/**
+	 * Give back a client obtained from acquire. The client is closed once
+	 * it has no users left
+	 *
+	 * @param client
+	 *            client to release
+	 */
+	public static synchronized void release(CuratorFramework client) {
+		Pool pool = owners.get(client);
+		if (pool == null) {
+			throw new IllegalArgumentException("Not a shared client");
+		}
+		boolean used = false;
+		for (int slot = 0; slot < pool.clients.length; slot++) {
+			if (pool.clients[slot] == client && --pool.users[slot] == 0) {
+				pool.clients[slot] = null;
+				owners.remove(client);
+				client.close();
+			}
+			used = used || pool.clients[slot] != null;
+		}
+		if (!used) {
+			pools.remove(pool.connectString);
+		}
+	}
+
+	/**
+	 * @return number of open shared sessions
+	 */
+	public static synchronized int sessionCount() {
+		return owners.size();
+	}
+}
@@ -1,13 +1,37 @@
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.MultiCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.KeeperException.ConnectionLossException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
@@ -17,60 +41,1233 @@ import org.apache.zookeeper.data.Stat;
 public class SyncPrimitive implements Watcher {
 
     static ZooKeeper zk = null;
-    static Integer mutex;
+
+    /*
+     * Watches are registered with the primitive that sets them, so an event
+     * only wakes the threads waiting on that primitive. generation counts
+     * the events delivered here; waiters compare it with the value read
+     * before setting their watch so an early event is never lost.
+     */
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition changed = lock.newCondition();
+    long generation = 0;
 
     String root;
 
-    SyncPrimitive(String address) {
-        if(zk == null){
+    SyncPrimitive(String address) {
+        if(zk == null){
+            try {
+                System.out.println("Starting ZK:");
+		System.out.println("Connecting to address: " + address);
+                zk = new ZooKeeper(address, 30000, this);
+                System.out.println("Finished starting ZK: " + zk);
+            } catch (IOException e) {
+                System.out.println(e.toString());
+                zk = null;
+            }
+        }
+    }
+
+    public void process(WatchedEvent event) {
+        lock.lock();
+        try {
+            System.out.println("Process: " + event.getType());
+            generation++;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Generation to pass to awaitChange, read before setting a watch.
+     */
+    long generation() {
+        lock.lock();
+        try {
+            return generation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until a watch of this primitive fires after generation seen was
+     * read.
+     *
+     * @param seen
+     * @param nanos longest wait, negative to wait without limit
+     * @return false if the time ran out first
+     * @throws InterruptedException
+     */
+    boolean awaitChange(long seen, long nanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (generation == seen) {
+                if (nanos < 0) {
+                    changed.await();
+                } else if (nanos == 0) {
+                    return false;
+                } else {
+                    nanos = Math.max(0, changed.awaitNanos(nanos));
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Create root as a persistent node if it does not exist yet.
+     */
+    void ensureRoot() {
+        if (zk != null) {
+            try {
+                if (zk.exists(root, false) == null) {
+                    zk.create(root, new byte[0], Ids.OPEN_ACL_UNSAFE,
+                            CreateMode.PERSISTENT);
+                }
+            } catch (KeeperException.NodeExistsException e) {
+                // Created concurrently
+            } catch (KeeperException e) {
+                System.out.println("Keeper exception when creating " + root + ": "
+                        + e.toString());
+            } catch (InterruptedException e) {
+                System.out.println("Interrupted exception");
+            }
+        }
+    }
+
+    /**
+     * Producer-Consumer queue
+     */
+    static class Queue extends SyncPrimitive {
+
+        /**
+         * Number of elements grouped into one multi() transaction by
+         * produceBatch and produceAll.
+         */
+        int batchSize = 100;
+
+        /**
+         * Number of multi() transactions kept in flight at once.
+         */
+        int maxInFlight = 4;
+
+        /**
+         * Sorted sequence numbers of the elements seen in the last listing
+         * of root. Entries before indexHead have already been claimed.
+         * Sequence numbers only grow, so elements created after the listing
+         * sort after every cached entry and popping the cache keeps FIFO
+         * order. The list is fetched again only once the cache runs dry.
+         * Guarded by lock.
+         */
+        long[] index = new long[0];
+        int indexHead = 0;
+
+        /**
+         * consumeAsync callers waiting for the index to be refilled, and
+         * whether an asynchronous listing of root is in flight. Guarded by
+         * lock.
+         */
+        final ArrayDeque<CompletableFuture<Integer>> waiting =
+                new ArrayDeque<CompletableFuture<Integer>>();
+        boolean listing = false;
+
+        /**
+         * Values unpacked from a multi-value element and not yet handed
+         * out. Guarded by lock.
+         */
+        int[] unpacked = new int[0];
+        int unpackedHead = 0;
+
+        /**
+         * Constructor of producer-consumer queue
+         *
+         * @param address
+         * @param name
+         */
+        Queue(String address, String name) {
+            super(address);
+            this.root = name;
+            // Create ZK node name
+            ensureRoot();
+        }
+
+        /**
+         * Add element to the queue.
+         *
+         * @param i
+         * @return
+         */
+
+        boolean produce(int i) throws KeeperException, InterruptedException{
+            get(produceAsync(i));
+            return true;
+        }
+
+        /**
+         * Add element to the queue without blocking. Dependent stages that
+         * are not *Async run on the ZooKeeper event thread.
+         *
+         * @param i
+         * @return future of the sequence number of the new element
+         */
+        CompletableFuture<Long> produceAsync(int i) {
+            // Add child with value i
+            return createAsync(encode(i));
+        }
+
+        /**
+         * Add values to the queue as a single packed element. Consumers
+         * get them back one by one, in order, from consume().
+         *
+         * @param values
+         * @return sequence number of the new element
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        long produceChunk(int[] values) throws KeeperException, InterruptedException{
+            return get(createAsync(packInts(values)));
+        }
+
+        /**
+         * Add byte[] records to the queue as a single packed element, to be
+         * read back with consumeRecords().
+         *
+         * @param records
+         * @return sequence number of the new element
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        long produceRecords(List<byte[]> records) throws KeeperException, InterruptedException{
+            return get(createAsync(packRecords(records)));
+        }
+
+        CompletableFuture<Long> createAsync(byte[] payload) {
+            final CompletableFuture<Long> result = new CompletableFuture<Long>();
+            zk.create(root + "/element", payload, Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT_SEQUENTIAL, new StringCallback() {
+                        public void processResult(int rc, String path, Object ctx,
+                                String name) {
+                            if (rc == Code.OK.intValue()) {
+                                result.complete(sequenceOf(name));
+                            } else {
+                                result.completeExceptionally(
+                                        KeeperException.create(Code.get(rc), path));
+                            }
+                        }
+                    }, null);
+            return result;
+        }
+
+        /**
+         * Add a batch of elements to the queue. Elements are grouped into
+         * multi() transactions of batchSize creates and up to maxInFlight
+         * transactions are pipelined on the session. ZooKeeper applies the
+         * requests of a session in order, so the elements keep the order of
+         * the array.
+         *
+         * @param values
+         * @return sequence numbers of the created elements, one array per batch
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        List<long[]> produceBatch(int[] values) throws KeeperException, InterruptedException{
+            int batches = (values.length + batchSize - 1) / batchSize;
+            final long[][] sequences = new long[batches][];
+            final AtomicInteger failure = new AtomicInteger(Code.OK.intValue());
+            final Semaphore inFlight = new Semaphore(maxInFlight);
+
+            MultiCallback cb = new MultiCallback() {
+                public void processResult(int rc, String path, Object ctx,
+                        List<OpResult> results) {
+                    if (rc == Code.OK.intValue()) {
+                        long[] batch = new long[results.size()];
+                        for (int j = 0; j < batch.length; j++) {
+                            String created = ((OpResult.CreateResult) results.get(j)).getPath();
+                            batch[j] = sequenceOf(created);
+                        }
+                        sequences[(Integer) ctx] = batch;
+                    } else {
+                        failure.compareAndSet(Code.OK.intValue(), rc);
+                    }
+                    inFlight.release();
+                }
+            };
+
+            for (int b = 0; b < batches && failure.get() == Code.OK.intValue(); b++) {
+                int from = b * batchSize;
+                int to = Math.min(from + batchSize, values.length);
+                List<Op> ops = new ArrayList<Op>(to - from);
+                for (int j = from; j < to; j++) {
+                    ops.add(Op.create(root + "/element", encode(values[j]),
+                            Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL));
+                }
+                inFlight.acquire();
+                zk.multi(ops, cb, b);
+            }
+
+            // Wait for the outstanding transactions
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+
+            if (failure.get() != Code.OK.intValue()) {
+                throw KeeperException.create(Code.get(failure.get()), root);
+            }
+            return Arrays.asList(sequences);
+        }
+
+        /**
+         * Add all elements to the queue using produceBatch.
+         *
+         * @param values
+         * @return sequence numbers of the created elements, one array per batch
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        List<long[]> produceAll(Iterable<Integer> values) throws KeeperException, InterruptedException{
+            int[] buffer = new int[batchSize];
+            int n = 0;
+            for (int v : values) {
+                if (n == buffer.length) buffer = Arrays.copyOf(buffer, n * 2);
+                buffer[n++] = v;
+            }
+            return produceBatch(Arrays.copyOf(buffer, n));
+        }
+
+        /**
+         * Remove first element from the queue.
+         *
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        int consume() throws KeeperException, InterruptedException{
+            return get(consumeAsync());
+        }
+
+        /**
+         * Remove first element from the queue without blocking. The future
+         * stays pending while the queue is empty and completes once an
+         * element arrives. Dependent stages that are not *Async run on the
+         * ZooKeeper event thread. If the head holds records the future fails
+         * with IllegalArgumentException and the element stays at the head.
+         *
+         * @return future of the removed value
+         */
+        CompletableFuture<Integer> consumeAsync() {
+            CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+            nextHead(result);
+            return result;
+        }
+
+        /**
+         * Claim the next head of the cached index for result, or park result
+         * until the next listing of root.
+         */
+        void nextHead(CompletableFuture<Integer> result) {
+            long head = -1;
+            int value = 0;
+            lock.lock();
+            try {
+                if (result.isDone()) return;
+                if (unpackedHead < unpacked.length) {
+                    value = unpacked[unpackedHead++];
+                } else if (indexHead == index.length) {
+                    waiting.add(result);
+                    if (!listing) {
+                        listing = true;
+                        listAsync();
+                    }
+                    return;
+                } else {
+                    head = index[indexHead++];
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (head < 0) {
+                result.complete(value);
+            } else {
+                take(elementPath(head), result);
+            }
+        }
+
+        /**
+         * Read and delete the element at path on behalf of result. If
+         * another consumer got there first the next head is tried.
+         */
+        void take(final String path, final CompletableFuture<Integer> result) {
+            zk.getData(path, false, new DataCallback() {
+                public void processResult(int rc, String p, Object ctx,
+                        final byte[] data, Stat stat) {
+                    if (rc == Code.NONODE.intValue()) {
+                        nextHead(result);
+                    } else if (rc != Code.OK.intValue()) {
+                        requeue(new long[] { sequenceOf(path) });
+                        result.completeExceptionally(KeeperException.create(Code.get(rc), p));
+                    } else if (result.isDone()) {
+                        // Cancelled meanwhile; the head is still in the queue
+                        requeue(new long[] { sequenceOf(path) });
+                    } else {
+                        // Decode before deleting, so an element that holds
+                        // records stays in the queue for consumeRecords
+                        final int[] values;
+                        try {
+                            values = unpackInts(data);
+                        } catch (IllegalArgumentException e) {
+                            requeue(new long[] { sequenceOf(path) });
+                            result.completeExceptionally(e);
+                            return;
+                        }
+                        zk.delete(path, 0, new VoidCallback() {
+                            public void processResult(int rc, String p, Object ctx) {
+                                if (rc == Code.OK.intValue()) {
+                                    buffer(values);
+                                    nextHead(result);
+                                } else if (rc == Code.NONODE.intValue()) {
+                                    nextHead(result);
+                                } else {
+                                    result.completeExceptionally(
+                                            KeeperException.create(Code.get(rc), p));
+                                }
+                            }
+                        }, null);
+                    }
+                }
+            }, null);
+        }
+
+        /**
+         * Put claimed heads that were not removed back at the front of the
+         * cached index. Heads that a listing since the claim already holds
+         * are not added twice.
+         *
+         * @param seqs sequence numbers, sorted
+         */
+        void requeue(long[] seqs) {
+            lock.lock();
+            try {
+                long[] merged = new long[seqs.length + index.length - indexHead];
+                int i = 0, j = indexHead, n = 0;
+                while (i < seqs.length || j < index.length) {
+                    long next;
+                    if (j == index.length || (i < seqs.length && seqs[i] <= index[j])) {
+                        next = seqs[i++];
+                    } else {
+                        next = index[j++];
+                    }
+                    if (n == 0 || merged[n - 1] != next) merged[n++] = next;
+                }
+                index = n == merged.length ? merged : Arrays.copyOf(merged, n);
+                indexHead = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Queue values unpacked from a removed element and hand them to
+         * parked consumeAsync callers.
+         */
+        void buffer(int[] values) {
+            List<CompletableFuture<Integer>> ready = new ArrayList<CompletableFuture<Integer>>();
+            lock.lock();
+            try {
+                int left = unpacked.length - unpackedHead;
+                int[] merged = Arrays.copyOfRange(unpacked, unpackedHead,
+                        unpackedHead + left + values.length);
+                System.arraycopy(values, 0, merged, left, values.length);
+                unpacked = merged;
+                unpackedHead = 0;
+                while (!waiting.isEmpty() && ready.size() < merged.length)
+                    ready.add(waiting.poll());
+            } finally {
+                lock.unlock();
+            }
+            for (CompletableFuture<Integer> f : ready)
+                nextHead(f);
+        }
+
+        /**
+         * List root asynchronously and hand the refilled index to the
+         * waiting consumers. If the queue is still empty they stay parked
+         * until the child watch fires. Called with lock held.
+         */
+        void listAsync() {
+            zk.getChildren(root, this, new ChildrenCallback() {
+                public void processResult(int rc, String path, Object ctx,
+                        List<String> children) {
+                    List<CompletableFuture<Integer>> ready;
+                    lock.lock();
+                    try {
+                        listing = false;
+                        if (rc != Code.OK.intValue()) {
+                            KeeperException e = KeeperException.create(Code.get(rc), path);
+                            for (CompletableFuture<Integer> f : waiting)
+                                f.completeExceptionally(e);
+                            waiting.clear();
+                            return;
+                        }
+                        if (indexHead == index.length) refreshIndex(children);
+                        if (indexHead == index.length) return;
+                        ready = new ArrayList<CompletableFuture<Integer>>(waiting);
+                        waiting.clear();
+                    } finally {
+                        lock.unlock();
+                    }
+                    for (CompletableFuture<Integer> f : ready)
+                        nextHead(f);
+                }
+            }, null);
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            super.process(event);
+            if (event.getType() == Event.EventType.None
+                    && event.getState() != Event.KeeperState.SyncConnected)
+                return;
+            lock.lock();
+            try {
+                if (!waiting.isEmpty() && !listing) {
+                    listing = true;
+                    listAsync();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Remove up to max elements from the head of the queue. Payloads of
+         * the claimed heads are read with pipelined getData calls and the
+         * elements are deleted in a single multi() transaction. Heads that
+         * another consumer removed first are dropped from the batch, and
+         * when every head of a batch is lost the next batch is tried.
+         *
+         * @param max
+         * @return at most max values of the removed elements, in queue
+         *         order; values of a packed element beyond max are kept for
+         *         the next consume or consumeBatch
+         * @throws IllegalArgumentException if the head holds records; the
+         *         element stays at the head
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        int[] consumeBatch(int max) throws KeeperException, InterruptedException{
+            lock.lock();
+            try {
+                if (unpackedHead < unpacked.length) {
+                    int n = Math.min(max, unpacked.length - unpackedHead);
+                    int[] values = Arrays.copyOfRange(unpacked, unpackedHead, unpackedHead + n);
+                    unpackedHead += n;
+                    return values;
+                }
+            } finally {
+                lock.unlock();
+            }
+            while (true) {
+                int[] values = drain(claimHeads(max));
+                if (values.length > max) {
+                    buffer(Arrays.copyOfRange(values, max, values.length));
+                    return Arrays.copyOf(values, max);
+                }
+                if (values.length > 0) return values;
+            }
+        }
+
+        /**
+         * Take up to max heads off the cached index, listing root again
+         * when it is exhausted and waiting while the queue is empty.
+         *
+         * @param max
+         * @return claimed sequence numbers, sorted
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        long[] claimHeads(int max) throws KeeperException, InterruptedException{
+            while (true) {
+                long seen;
+                lock.lock();
+                try {
+                    if (indexHead < index.length) {
+                        int n = Math.min(max, index.length - indexHead);
+                        long[] claimed = Arrays.copyOfRange(index, indexHead, indexHead + n);
+                        indexHead += n;
+                        return claimed;
+                    }
+                    seen = generation;
+                } finally {
+                    lock.unlock();
+                }
+                // Listed without the lock, so the event thread can go on
+                // delivering watches and callbacks in the meantime
+                List<String> children = zk.getChildren(root, this);
+                lock.lock();
+                try {
+                    // Another consumer may have refilled the index first
+                    if (indexHead == index.length) refreshIndex(children);
+                    if (indexHead == index.length) {
+                        while (generation == seen) changed.await();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Read and delete the given elements.
+         *
+         * @param claimed sequence numbers, sorted
+         * @return values of the elements this consumer removed
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        int[] drain(long[] claimed) throws KeeperException, InterruptedException{
+            final byte[][] payloads = new byte[claimed.length][];
+            final CountDownLatch pending = new CountDownLatch(claimed.length);
+            DataCallback cb = new DataCallback() {
+                public void processResult(int rc, String path, Object ctx,
+                        byte[] data, Stat stat) {
+                    if (rc == Code.OK.intValue()) payloads[(Integer) ctx] = data;
+                    pending.countDown();
+                }
+            };
+            for (int j = 0; j < claimed.length; j++) {
+                zk.getData(elementPath(claimed[j]), false, cb, j);
+            }
+            pending.await();
+
+            // Decode before deleting. The batch ends at the first element
+            // that holds records; it and the heads after it go back to the
+            // index, so consumeRecords can still take it
+            List<Op> ops = new ArrayList<Op>(claimed.length);
+            List<int[]> taken = new ArrayList<int[]>(claimed.length);
+            for (int j = 0; j < claimed.length; j++) {
+                if (payloads[j] == null) continue;
+                try {
+                    taken.add(unpackInts(payloads[j]));
+                } catch (IllegalArgumentException e) {
+                    requeue(Arrays.copyOfRange(claimed, j, claimed.length));
+                    if (ops.isEmpty()) throw e;
+                    break;
+                }
+                ops.add(Op.delete(elementPath(claimed[j]), 0));
+            }
+
+            // multi() is all or nothing: drop the elements that another
+            // consumer deleted in the meantime and try again with the rest
+            while (!ops.isEmpty()) {
+                try {
+                    zk.multi(ops);
+                    break;
+                } catch (KeeperException e) {
+                    List<OpResult> results = e.getResults();
+                    boolean dropped = false;
+                    for (int j = results == null ? -1 : results.size() - 1; j >= 0; j--) {
+                        OpResult r = results.get(j);
+                        if (r instanceof OpResult.ErrorResult
+                                && ((OpResult.ErrorResult) r).getErr() == Code.NONODE.intValue()) {
+                            ops.remove(j);
+                            taken.remove(j);
+                            dropped = true;
+                        }
+                    }
+                    if (!dropped) throw e;
+                }
+            }
+
+            int total = 0;
+            for (int[] chunk : taken)
+                total += chunk.length;
+            int[] values = new int[total];
+            int n = 0;
+            for (int[] chunk : taken) {
+                System.arraycopy(chunk, 0, values, n, chunk.length);
+                n += chunk.length;
+            }
+            return values;
+        }
+
+        /**
+         * Remove first element from the queue and return its records. A
+         * plain int element comes back as one 4-byte record.
+         *
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        List<byte[]> consumeRecords() throws KeeperException, InterruptedException{
+            while (true) {
+                String path = elementPath(claimHeads(1)[0]);
+                try {
+                    byte[] b = zk.getData(path, false, null);
+                    zk.delete(path, 0);
+                    return unpackRecords(b);
+                } catch (KeeperException.NoNodeException e) {
+                    // Claimed by another consumer, move to the next head
+                }
+            }
+        }
+
+        /**
+         * Replace the cached index with the sequence numbers in list.
+         *
+         * @param list children of root
+         */
+        void refreshIndex(List<String> list) {
+            long[] fresh = new long[list.size()];
+            int n = 0;
+            for (String s : list) {
+                if (s.startsWith("element")) fresh[n++] = sequenceOf(s);
+            }
+            Arrays.sort(fresh, 0, n);
+            index = n == fresh.length ? fresh : Arrays.copyOf(fresh, n);
+            indexHead = 0;
+        }
+
+        /**
+         * Full path of the element with sequence number seq.
+         */
+        String elementPath(long seq) {
+            String digits = Long.toString(seq);
+            StringBuilder sb = new StringBuilder(root.length() + 18);
+            sb.append(root).append("/element");
+            for (int j = digits.length(); j < 10; j++) sb.append('0');
+            return sb.append(digits).toString();
+        }
+    }
+
+    /**
+     * Distributed lock. Every contender creates an ephemeral sequential node
+     * under root and watches only the node just before its own, so a
+     * release wakes a single waiter. The lock is reentrant for the thread
+     * holding it; other threads of the same instance wait locally.
+     */
+    static class Lock extends SyncPrimitive {
+
+        /**
+         * ZooKeeper requests issued by all locks, for lTest.
+         */
+        static final AtomicLong requests = new AtomicLong();
+
+        /**
+         * Name prefix of the lock nodes: "lock-", or "read-"/"write-" for
+         * the halves of a ReadWriteLock.
+         */
+        final String prefix;
+
+        /**
+         * Watch all of root and re-check on every change instead of
+         * watching the predecessor. Only there to compare against in lTest.
+         */
+        boolean watchRoot = false;
+
+        /*
+         * Thread holding (or acquiring) the lock through this instance,
+         * its hold count and the lock node. Guarded by lock.
+         */
+        Thread owner;
+        int holds;
+        String node;
+
+        /**
+         * Constructor of an exclusive lock
+         *
+         * @param address
+         * @param name
+         */
+        Lock(String address, String name) {
+            this(address, name, "lock-");
+        }
+
+        Lock(String address, String name, String prefix) {
+            super(address);
+            this.root = name;
+            this.prefix = prefix;
+            ensureRoot();
+        }
+
+        /**
+         * Acquire the lock, waiting as long as necessary.
+         *
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void lock() throws KeeperException, InterruptedException{
+            tryLock(-1, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Acquire the lock if it becomes available within timeout.
+         *
+         * @param timeout negative to wait without limit
+         * @param unit
+         * @return true if the lock is now held
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        boolean tryLock(long timeout, TimeUnit unit) throws KeeperException, InterruptedException{
+            boolean timed = timeout >= 0;
+            long deadline = System.nanoTime() + (timed ? unit.toNanos(timeout) : 0);
+            Thread me = Thread.currentThread();
+
+            lock.lock();
+            try {
+                if (owner == me) {
+                    holds++;
+                    return true;
+                }
+                while (owner != null) {
+                    long left = deadline - System.nanoTime();
+                    if (!timed) {
+                        changed.await();
+                    } else if (left <= 0) {
+                        return false;
+                    } else {
+                        changed.awaitNanos(left);
+                    }
+                }
+                owner = me;
+            } finally {
+                lock.unlock();
+            }
+
+            boolean acquired = false;
+            try {
+                acquired = acquire(timed, deadline);
+                return acquired;
+            } finally {
+                lock.lock();
+                try {
+                    if (acquired) {
+                        holds = 1;
+                    } else {
+                        // Timed out or failed: withdraw without blocking,
+                        // the thread may be interrupted
+                        if (node != null) zk.delete(node, -1, null, null);
+                        node = null;
+                        owner = null;
+                        changed.signalAll();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Release one hold of the lock, deleting the lock node with the
+         * last one.
+         *
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void unlock() throws KeeperException, InterruptedException{
+            String path;
+            lock.lock();
+            try {
+                if (owner != Thread.currentThread())
+                    throw new IllegalMonitorStateException();
+                if (--holds > 0) return;
+                path = node;
+                node = null;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                delete(path);
+            } finally {
+                lock.lock();
+                try {
+                    owner = null;
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        boolean acquire(boolean timed, long deadline) throws KeeperException, InterruptedException{
+            if (node == null) {
+                requests.incrementAndGet();
+                node = zk.create(root + "/" + prefix, new byte[0], Ids.OPEN_ACL_UNSAFE,
+                        CreateMode.EPHEMERAL_SEQUENTIAL);
+            }
+            long mine = sequenceOf(node);
+
+            while (true) {
+                long seen = generation();
+                requests.incrementAndGet();
+                List<String> children = watchRoot
+                        ? zk.getChildren(root, this) : zk.getChildren(root, false);
+                String blocker = blocker(children, mine);
+                if (blocker == null) return true;
+
+                if (!watchRoot) {
+                    requests.incrementAndGet();
+                    if (zk.exists(root + "/" + blocker, this) == null) continue;
+                }
+                long left = timed ? deadline - System.nanoTime() : -1;
+                if ((timed && left <= 0) || !awaitChange(seen, left)) return false;
+            }
+        }
+
+        /**
+         * Node that must go away before the lock node with sequence number
+         * mine is granted: the closest earlier node, or for a reader the
+         * closest earlier writer.
+         *
+         * @return name of the blocking node, null if the lock is granted
+         */
+        String blocker(List<String> children, long mine) {
+            boolean reader = prefix.equals("read-");
+            String blocker = null;
+            long closest = -1;
+            for (String s : children) {
+                if (reader && !s.startsWith("write-")) continue;
+                long seq = sequenceOf(s);
+                if (seq < mine && seq > closest) {
+                    closest = seq;
+                    blocker = s;
+                }
+            }
+            return blocker;
+        }
+
+        void delete(String path) throws KeeperException, InterruptedException{
+            try {
+                requests.incrementAndGet();
+                zk.delete(path, -1);
+            } catch (KeeperException.NoNodeException e) {
+                // Already gone with the session
+            }
+        }
+    }
+
+    /**
+     * Distributed read/write lock. Readers only wait for earlier writers,
+     * writers wait for every earlier node. A reader cannot upgrade to the
+     * write lock.
+     */
+    static class ReadWriteLock {
+        final Lock readLock;
+        final Lock writeLock;
+
+        ReadWriteLock(String address, String name) {
+            readLock = new Lock(address, name, "read-");
+            writeLock = new Lock(address, name, "write-");
+        }
+
+        Lock readLock() {
+            return readLock;
+        }
+
+        Lock writeLock() {
+            return writeLock;
+        }
+    }
+
+    /**
+     * Double barrier. enter() returns once size participants have entered
+     * and leave() once all of them have left. Each round gathers under
+     * root/round-<n>, where n is kept in the data of root. The participant
+     * that fills a round creates its ready node and moves root on to the
+     * next round in one multi(), so a participant entering again starts a
+     * fresh round and never finds a stale ready node. Everybody else
+     * watches the ready node, and on the way out participants only watch
+     * the lowest or highest remaining node, so the number of watch
+     * notifications grows linearly with the participants.
+     */
+    static class Barrier extends SyncPrimitive {
+        final int size;
+        String node;
+        int round;
+        String roundPath;
+
+        /**
+         * Barrier constructor
+         *
+         * @param address
+         * @param name
+         * @param size
+         */
+        Barrier(String address, String name, int size) {
+            super(address);
+            this.root = name;
+            this.size = size;
+            ensureRoot();
+        }
+
+        boolean enter() throws KeeperException, InterruptedException{
+            return enter(-1, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Join the barrier and wait until it is full.
+         *
+         * @param timeout negative to wait without limit
+         * @param unit
+         * @return false if the barrier did not fill up in time, in which
+         *         case this participant has withdrawn
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        boolean enter(long timeout, TimeUnit unit) throws KeeperException, InterruptedException{
+            boolean timed = timeout >= 0;
+            long deadline = System.nanoTime() + (timed ? unit.toNanos(timeout) : 0);
+
+            join();
+            if (fill()) return true;
+
+            while (true) {
+                long seen = generation();
+                if (zk.exists(roundPath + "/ready", this) != null) return true;
+                long left = timed ? deadline - System.nanoTime() : -1;
+                if ((timed && left <= 0) || !awaitChange(seen, left)) {
+                    // If the round filled up first this participant counts
+                    if (withdraw()) return false;
+                }
+            }
+        }
+
+        /**
+         * Create this participant's node in the current round. The create
+         * is conditional on the version of root, so it never lands in a
+         * round that has already filled up.
+         *
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void join() throws KeeperException, InterruptedException{
+            while (true) {
+                Stat stat = new Stat();
+                int current = roundOf(zk.getData(root, false, stat));
+                String path = root + "/round-" + current;
+                try {
+                    List<OpResult> results = zk.multi(Arrays.asList(
+                            Op.check(root, stat.getVersion()),
+                            Op.create(path + "/member-", new byte[0], Ids.OPEN_ACL_UNSAFE,
+                                    CreateMode.EPHEMERAL_SEQUENTIAL)));
+                    node = ((OpResult.CreateResult) results.get(1)).getPath();
+                    round = current;
+                    roundPath = path;
+                    return;
+                } catch (KeeperException.BadVersionException e) {
+                    // The round filled up, join the next one
+                } catch (KeeperException.NoNodeException e) {
+                    // First participant of the round
+                    try {
+                        zk.multi(Arrays.asList(Op.check(root, stat.getVersion()),
+                                Op.create(path, new byte[0], Ids.OPEN_ACL_UNSAFE,
+                                        CreateMode.PERSISTENT)));
+                    } catch (KeeperException.BadVersionException ex) {
+                        // The round filled up in the meantime
+                    } catch (KeeperException.NodeExistsException ex) {
+                        // Created by another participant
+                    }
+                }
+            }
+        }
+
+        /**
+         * Close the round if it has size participants: create its ready
+         * node and move root on to the next round, provided that root and
+         * every counted participant are unchanged.
+         *
+         * @return true if the round is full
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        boolean fill() throws KeeperException, InterruptedException{
+            while (true) {
+                Stat stat = new Stat();
+                if (roundOf(zk.getData(root, false, stat)) != round) return true;
+                List<String> list = members();
+                if (list.size() < size) return false;
+                List<Op> ops = new ArrayList<Op>(list.size() + 2);
+                ops.add(Op.setData(root, encode(round + 1), stat.getVersion()));
+                for (String s : list)
+                    ops.add(Op.check(roundPath + "/" + s, -1));
+                ops.add(Op.create(roundPath + "/ready", new byte[0], Ids.OPEN_ACL_UNSAFE,
+                        CreateMode.PERSISTENT));
+                try {
+                    zk.multi(ops);
+                    return true;
+                } catch (KeeperException.BadVersionException e) {
+                    // Another participant filled the round first
+                } catch (KeeperException.NoNodeException e) {
+                    // A counted participant withdrew, count again
+                }
+            }
+        }
+
+        /**
+         * Delete this participant's node unless its round has filled up.
+         * The delete is conditional on the version of root, and filling
+         * the round checks that every counted node still exists, so a
+         * participant is either counted or withdrawn, never both.
+         *
+         * @return true if withdrawn
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        boolean withdraw() throws KeeperException, InterruptedException{
+            while (true) {
+                Stat stat = new Stat();
+                if (roundOf(zk.getData(root, false, stat)) != round) return false;
+                try {
+                    zk.multi(Arrays.asList(Op.check(root, stat.getVersion()),
+                            Op.delete(node, -1)));
+                    node = null;
+                    return true;
+                } catch (KeeperException.BadVersionException e) {
+                    // The round filled up in the meantime
+                }
+            }
+        }
+
+        boolean leave() throws KeeperException, InterruptedException{
+            return leave(-1, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Leave the barrier and wait until every participant has left.
+         * The lowest node leaves last: it waits on the highest remaining
+         * node, everybody else deletes its node and waits on the lowest.
+         * The last one out removes the ready node, then its own node and
+         * the round.
+         *
+         * @param timeout negative to wait without limit
+         * @param unit
+         * @return false if others were still inside when the time ran out
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        boolean leave(long timeout, TimeUnit unit) throws KeeperException, InterruptedException{
+            boolean timed = timeout >= 0;
+            long deadline = System.nanoTime() + (timed ? unit.toNanos(timeout) : 0);
+            String mine = node == null ? null : node.substring(roundPath.length() + 1);
+
+            while (true) {
+                long seen = generation();
+                List<String> list = members();
+                if (list.isEmpty()) return true;
+                if (list.size() == 1 && list.get(0).equals(mine)) {
+                    // The others return once this node is gone, so the
+                    // ready node must be gone before it
+                    try {
+                        zk.delete(roundPath + "/ready", -1);
+                    } catch (KeeperException.NoNodeException e) {
+                        // Never filled up
+                    }
+                    zk.delete(node, -1);
+                    node = null;
+                    try {
+                        zk.delete(roundPath, -1);
+                    } catch (KeeperException.NoNodeException e) {
+                        // Already removed
+                    }
+                    return true;
+                }
+
+                String watched;
+                if (list.get(0).equals(mine)) {
+                    watched = list.get(list.size() - 1);
+                } else {
+                    if (node != null) {
+                        zk.delete(node, -1);
+                        node = null;
+                        mine = null;
+                    }
+                    watched = list.get(0);
+                }
+                if (zk.exists(roundPath + "/" + watched, this) == null) continue;
+                long left = timed ? deadline - System.nanoTime() : -1;
+                if ((timed && left <= 0) || !awaitChange(seen, left)) return false;
+            }
+        }
+
+        /**
+         * Participant nodes of the current round, in order of arrival.
+         */
+        List<String> members() throws KeeperException, InterruptedException{
+            List<String> list = new ArrayList<String>();
             try {
-                System.out.println("Starting ZK:");
-		System.out.println("Connecting to address: " + address);
-                zk = new ZooKeeper(address, 30000, this);
-                mutex = new Integer(-1);
-                System.out.println("Finished starting ZK: " + zk);
-            } catch (IOException e) {
-                System.out.println(e.toString());
-                zk = null;
+                for (String s : zk.getChildren(roundPath, false)) {
+                    if (s.startsWith("member-")) list.add(s);
+                }
+            } catch (KeeperException.NoNodeException e) {
+                // The last participant has removed the round
             }
+            String[] sorted = list.toArray(new String[list.size()]);
+            Arrays.sort(sorted);
+            return Arrays.asList(sorted);
         }
-        //else mutex = new Integer(-1);
-    }
 
-    synchronized public void process(WatchedEvent event) {
-        synchronized (mutex) {
-            System.out.println("Process: " + event.getType());
-            mutex.notify();
+        /**
+         * Round number held in the data of root.
+         */
+        static int roundOf(byte[] data) {
+            return data != null && data.length == 4 ? ByteBuffer.wrap(data).getInt() : 0;
         }
     }
 
     /**
-     * Producer-Consumer queue
+     * Queue with priority lanes and delayed delivery. Every priority has a
+     * lane node of its own, root/lane-<priority>, whose elements are named
+     * <due millis>-<sequence> with fixed-width fields, so that within a lane
+     * names sort by due time and then by arrival. The local index keeps one
+     * sorted lane per priority; the next element is the head of the most
+     * urgent lane whose head is due, found without looking at any other
+     * element. Each lane has its own child watch, and only a lane whose
+     * watch fired is listed again. While nothing is due consumers sleep
+     * until the earliest due time or until a child watch fires.
      */
-    static class Queue extends SyncPrimitive {
+    static class PriorityQueue extends SyncPrimitive {
+
+        /*
+         * Lane per priority, 0 being the most urgent, and whether a lane
+         * has changed since it was last listed. Guarded by lock.
+         */
+        final List<TreeSet<String>> lanes;
+        final boolean[] stale;
 
         /**
-         * Constructor of producer-consumer queue
+         * Constructor of priority queue
          *
          * @param address
          * @param name
+         * @param levels number of priorities, 1 to 100
          */
-        Queue(String address, String name) {
+        PriorityQueue(String address, String name, int levels) {
             super(address);
+            if (levels < 1 || levels > 100)
+                throw new IllegalArgumentException("Priorities must be 1 to 100: " + levels);
             this.root = name;
-            // Create ZK node name
+            lanes = new ArrayList<TreeSet<String>>(levels);
+            for (int j = 0; j < levels; j++)
+                lanes.add(new TreeSet<String>());
+            stale = new boolean[levels];
+            Arrays.fill(stale, true);
+            ensureRoot();
             if (zk != null) {
                 try {
-		    System.out.println("blabla");
-                    Stat s = zk.exists(root, false);
-                    if (s == null) {
-                        zk.create(root, new byte[0], Ids.OPEN_ACL_UNSAFE,
-                                CreateMode.PERSISTENT);
+                    for (int j = 0; j < levels; j++) {
+                        try {
+                            zk.create(lanePath(j), new byte[0], Ids.OPEN_ACL_UNSAFE,
+                                    CreateMode.PERSISTENT);
+                        } catch (KeeperException.NodeExistsException e) {
+                            // Created by another instance
+                        }
                     }
                 } catch (KeeperException e) {
-                    System.out
-                            .println("Keeper exception when instantiating queue: "
-                                    + e.toString());
+                    System.out.println("Keeper exception when creating lanes: "
+                            + e.toString());
                 } catch (InterruptedException e) {
                     System.out.println("Interrupted exception");
                 }
@@ -81,59 +1278,276 @@ public class SyncPrimitive implements Watcher {
          * Add element to the queue.
          *
          * @param i
+         * @param priority 0 for the most urgent lane
+         * @param delay milliseconds before the element may be consumed
          * @return
+         * @throws KeeperException
+         * @throws InterruptedException
          */
-
-        boolean produce(int i) throws KeeperException, InterruptedException{
-            ByteBuffer b = ByteBuffer.allocate(4);
-            byte[] value;
-
-            // Add child with value i
-            b.putInt(i);
-            value = b.array();
-            zk.create(root + "/element", value, Ids.OPEN_ACL_UNSAFE,
-                        CreateMode.PERSISTENT_SEQUENTIAL);
-
+        boolean produce(int i, int priority, long delay) throws KeeperException, InterruptedException{
+            if (priority < 0 || priority >= lanes.size())
+                throw new IllegalArgumentException("No such priority: " + priority);
+            StringBuilder name = new StringBuilder(lanePath(priority)).append('/');
+            pad(name, System.currentTimeMillis() + Math.max(0, delay), 13).append('-');
+            zk.create(name.toString(), encode(i), Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT_SEQUENTIAL);
             return true;
         }
 
-
         /**
-         * Remove first element from the queue.
+         * Remove the most urgent element that is due, waiting for one to
+         * arrive or become due.
          *
          * @return
          * @throws KeeperException
          * @throws InterruptedException
          */
         int consume() throws KeeperException, InterruptedException{
-            int retvalue = -1;
-            Stat stat = null;
-
-            // Get the first element available
             while (true) {
-                synchronized (mutex) {
-                    List<String> list = zk.getChildren(root, true);
-                    if (list.size() == 0) {
-                        System.out.println("Going to wait");
-                        mutex.wait();
-                    } else {
-                        Integer min = new Integer(list.get(0).substring(7));
-                        for(String s : list){
-                            Integer tempValue = new Integer(s.substring(7));
-                            System.out.println("Temporary value: " + tempValue);
-                            if(tempValue < min) min = tempValue;
+                String next = null;
+                lock.lock();
+                try {
+                    long seen = generation;
+                    for (int j = 0; j < stale.length; j++) {
+                        if (!stale[j]) continue;
+                        // Cleared first, so a change during the listing
+                        // marks the lane again
+                        stale[j] = false;
+                        refreshLane(j, zk.getChildren(lanePath(j), this));
+                    }
+                    long now = System.currentTimeMillis();
+                    long earliest = Long.MAX_VALUE;
+                    for (int j = 0; j < lanes.size(); j++) {
+                        TreeSet<String> lane = lanes.get(j);
+                        if (lane.isEmpty()) continue;
+                        long due = dueOf(lane.first());
+                        if (due <= now) {
+                            next = lanePath(j) + "/" + lane.pollFirst();
+                            break;
                         }
-                        System.out.println("Temporary value: " + root + "/element" + min);
-                        byte[] b = zk.getData(root + "/element" + min,
-                                    false, stat);
-                        zk.delete(root + "/element" + min, 0);
-                        ByteBuffer buffer = ByteBuffer.wrap(b);
-                        retvalue = buffer.getInt();
-
-                        return retvalue;
+                        earliest = Math.min(earliest, due);
                     }
+                    if (next == null) {
+                        if (earliest == Long.MAX_VALUE) {
+                            while (generation == seen) changed.await();
+                        } else {
+                            long nanos = TimeUnit.MILLISECONDS.toNanos(earliest - now);
+                            while (generation == seen && nanos > 0)
+                                nanos = changed.awaitNanos(nanos);
+                        }
+                        continue;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                try {
+                    byte[] b = zk.getData(next, false, null);
+                    zk.delete(next, 0);
+                    return ByteBuffer.wrap(b).getInt();
+                } catch (KeeperException.NoNodeException e) {
+                    // Claimed by another consumer, pick again
+                }
+            }
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            lock.lock();
+            try {
+                int lane = laneOf(event.getPath());
+                if (lane >= 0) {
+                    stale[lane] = true;
+                } else {
+                    Arrays.fill(stale, true);
                 }
+                super.process(event);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void refreshLane(int priority, List<String> list) {
+            TreeSet<String> lane = lanes.get(priority);
+            lane.clear();
+            for (String s : list) {
+                if (s.length() == 24 && s.charAt(13) == '-') lane.add(s);
+            }
+        }
+
+        String lanePath(int priority) {
+            return pad(new StringBuilder(root).append("/lane-"), priority, 2).toString();
+        }
+
+        /**
+         * Priority of the lane at path, -1 if path is not a lane of this
+         * queue.
+         */
+        int laneOf(String path) {
+            if (path == null || path.length() != root.length() + 8
+                    || !path.startsWith(root + "/lane-"))
+                return -1;
+            int priority = (path.charAt(root.length() + 6) - '0') * 10
+                    + (path.charAt(root.length() + 7) - '0');
+            return priority >= 0 && priority < stale.length ? priority : -1;
+        }
+
+        static long dueOf(String name) {
+            long due = 0;
+            for (int j = 0; j < 13; j++)
+                due = due * 10 + (name.charAt(j) - '0');
+            return due;
+        }
+
+        static StringBuilder pad(StringBuilder sb, long value, int width) {
+            String digits = Long.toString(value);
+            for (int j = digits.length(); j < width; j++) sb.append('0');
+            return sb.append(digits);
+        }
+    }
+
+    /**
+     * Payload of an element holding value i.
+     */
+    static byte[] encode(int i) {
+        return ByteBuffer.allocate(4).putInt(i).array();
+    }
+
+    /*
+     * Packed elements carry many values in one znode. A plain element is
+     * exactly 4 bytes, a packed one starts with the 3-byte header
+     * 'Q' 'P' type, followed by a varint count, so the two never collide.
+     * Ints are zigzag varints; records are a varint length and the bytes.
+     */
+    static final byte PACKED_INTS = 'I';
+    static final byte PACKED_RECORDS = 'R';
+
+    static byte[] packInts(int[] values) {
+        if (values.length == 0)
+            throw new IllegalArgumentException("Empty element");
+        ByteBuffer b = ByteBuffer.allocate(3 + 5 + values.length * 5);
+        b.put((byte) 'Q').put((byte) 'P').put(PACKED_INTS);
+        putVarint(b, values.length);
+        for (int v : values)
+            putVarint(b, (v << 1) ^ (v >> 31));
+        return Arrays.copyOf(b.array(), b.position());
+    }
+
+    static byte[] packRecords(List<byte[]> records) {
+        if (records.isEmpty())
+            throw new IllegalArgumentException("Empty element");
+        int size = 3 + 5;
+        for (byte[] r : records)
+            size += 5 + r.length;
+        ByteBuffer b = ByteBuffer.allocate(size);
+        b.put((byte) 'Q').put((byte) 'P').put(PACKED_RECORDS);
+        putVarint(b, records.size());
+        for (byte[] r : records) {
+            putVarint(b, r.length);
+            b.put(r);
+        }
+        return Arrays.copyOf(b.array(), b.position());
+    }
+
+    /**
+     * Values held by an element payload.
+     */
+    static int[] unpackInts(byte[] payload) {
+        ByteBuffer b = ByteBuffer.wrap(payload);
+        if (packedType(payload) != PACKED_INTS) {
+            if (payload.length != 4)
+                throw new IllegalArgumentException("Not an int element");
+            return new int[] { b.getInt() };
+        }
+        b.position(3);
+        try {
+            int n = getVarint(b);
+            // Every value takes at least one byte
+            if (n < 0 || n > b.remaining())
+                throw new IllegalArgumentException("Truncated element");
+            int[] values = new int[n];
+            for (int j = 0; j < values.length; j++) {
+                int z = getVarint(b);
+                values[j] = (z >>> 1) ^ -(z & 1);
             }
+            return values;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated element");
+        }
+    }
+
+    /**
+     * Records held by an element payload.
+     */
+    static List<byte[]> unpackRecords(byte[] payload) {
+        if (packedType(payload) != PACKED_RECORDS) {
+            List<byte[]> records = new ArrayList<byte[]>();
+            for (int v : unpackInts(payload))
+                records.add(encode(v));
+            return records;
+        }
+        ByteBuffer b = ByteBuffer.wrap(payload, 3, payload.length - 3);
+        int n = getVarint(b);
+        List<byte[]> records = new ArrayList<byte[]>(n);
+        for (int j = 0; j < n; j++) {
+            byte[] r = new byte[getVarint(b)];
+            b.get(r);
+            records.add(r);
+        }
+        return records;
+    }
+
+    static byte packedType(byte[] payload) {
+        if (payload.length > 4 && payload[0] == 'Q' && payload[1] == 'P')
+            return payload[2];
+        return 0;
+    }
+
+    static void putVarint(ByteBuffer b, int v) {
+        while ((v & ~0x7F) != 0) {
+            b.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        b.put((byte) v);
+    }
+
+    static int getVarint(ByteBuffer b) {
+        int v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte next = b.get();
+            v |= (next & 0x7F) << shift;
+            if (next >= 0) return v;
+        }
+    }
+
+    /**
+     * Sequence number that ZooKeeper appended to a sequential node.
+     *
+     * @param path name or full path of the node
+     * @return
+     */
+    static long sequenceOf(String path) {
+        long seq = 0;
+        for (int j = path.length() - 10; j < path.length(); j++) {
+            seq = seq * 10 + (path.charAt(j) - '0');
+        }
+        return seq;
+    }
+
+    /**
+     * Wait for future and rethrow the KeeperException it failed with. The
+     * future is cancelled if the wait is interrupted.
+     */
+    static <T> T get(CompletableFuture<T> future) throws KeeperException, InterruptedException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof KeeperException)
+                throw (KeeperException) e.getCause();
+            throw new RuntimeException(e.getCause());
         }
     }
 
@@ -141,6 +1555,14 @@ public class SyncPrimitive implements Watcher {
 	System.out.println("bla0");
         if (args[0].equals("qTest"))
             queueTest(args);
+        else if (args[0].equals("cTest"))
+            consumerScaling(args);
+        else if (args[0].equals("lTest"))
+            lockTest(args);
+        else if (args[0].equals("bTest"))
+            barrierTest(args);
+        else if (args[0].equals("pTest"))
+            priorityTest(args);
     }
 
     public static void queueTest(String args[]) {
@@ -150,7 +1572,80 @@ public class SyncPrimitive implements Watcher {
         int i;
         Integer max = new Integer(args[2]);
 
-        if (args[3].equals("p")) {
+        if (args[3].equals("b")) {
+            System.out.println("Batch producer");
+            if (args.length > 4) q.batchSize = Integer.parseInt(args[4]);
+            if (args.length > 5) q.maxInFlight = Integer.parseInt(args[5]);
+            int[] values = new int[max];
+            for (i = 0; i < max; i++)
+                values[i] = 10 + i;
+            try{
+                long start = System.nanoTime();
+                for (i = 0; i < max; i++)
+                    q.produce(values[i]);
+                long single = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                List<long[]> batches = q.produceBatch(values);
+                long batched = System.nanoTime() - start;
+
+                System.out.println("Single create: " + rate(max, single) + " elements/s");
+                System.out.println("Batched (" + batches.size() + " x " + q.batchSize
+                        + ", " + q.maxInFlight + " in flight): " + rate(max, batched) + " elements/s");
+            } catch (KeeperException e){
+                System.out.println(e.toString());
+            } catch (InterruptedException e){
+
+            }
+        } else if (args[3].equals("a")) {
+            System.out.println("Async producer/consumer");
+            CompletableFuture<?>[] pending = new CompletableFuture<?>[max];
+            try{
+                long start = System.nanoTime();
+                for (i = 0; i < max; i++)
+                    pending[i] = q.produceAsync(10 + i);
+                get(CompletableFuture.allOf(pending));
+                long produced = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (i = 0; i < max; i++)
+                    pending[i] = q.consumeAsync();
+                get(CompletableFuture.allOf(pending));
+                long consumed = System.nanoTime() - start;
+
+                System.out.println("produceAsync: " + rate(max, produced) + " elements/s");
+                System.out.println("consumeAsync: " + rate(max, consumed) + " elements/s");
+            } catch (KeeperException e){
+                System.out.println(e.toString());
+            } catch (InterruptedException e){
+
+            }
+        } else if (args[3].equals("k")) {
+            int chunk = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+            System.out.println("Packed producer, " + chunk + " values per element");
+            try{
+                long start = System.nanoTime();
+                int elements = 0;
+                for (i = 0; i < max; i += chunk) {
+                    int[] values = new int[Math.min(chunk, max - i)];
+                    for (int j = 0; j < values.length; j++)
+                        values[j] = 10 + i + j;
+                    q.produceChunk(values);
+                    elements++;
+                }
+                long elapsed = System.nanoTime() - start;
+                System.out.println(max + " values in " + elements + " znodes: "
+                        + rate(max, elapsed) + " values/s");
+            } catch (KeeperException e){
+                System.out.println(e.toString());
+            } catch (InterruptedException e){
+
+            }
+        } else if (args[3].equals("v")) {
+            int consumers = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+            System.out.println("Consumer pool: " + consumers + " consumers");
+            consumerPool(q, max, consumers);
+        } else if (args[3].equals("p")) {
             System.out.println("Producer");
             for (i = 0; i < max; i++)
                 try{
@@ -160,6 +1655,21 @@ public class SyncPrimitive implements Watcher {
                 } catch (InterruptedException e){
 
                 }
+        } else if (args[3].equals("d")) {
+            System.out.println("Batch consumer");
+            int batch = args.length > 4 ? Integer.parseInt(args[4]) : q.batchSize;
+            for (i = 0; i < max;) {
+                try{
+                    int[] r = q.consumeBatch(Math.min(batch, max - i));
+                    for (int v : r)
+                        System.out.println("Item: " + v);
+                    i += r.length;
+                } catch (KeeperException e){
+
+                } catch (InterruptedException e){
+
+                }
+            }
         } else {
             System.out.println("Consumer");
 
@@ -176,5 +1686,286 @@ public class SyncPrimitive implements Watcher {
         }
     }
 
-}
+    /**
+     * Run the given number of consumers on virtual threads against q until
+     * max elements have been removed, then print the aggregate dequeue rate
+     * and how evenly the elements were spread over the consumers.
+     */
+    static void consumerPool(final Queue q, int max, int consumers) {
+        final AtomicInteger tickets = new AtomicInteger(max);
+        final int[] counts = new int[consumers];
+        final CountDownLatch done = new CountDownLatch(consumers);
+        ExecutorService pool = newVirtualThreadExecutor();
+
+        long start = System.nanoTime();
+        for (int c = 0; c < consumers; c++) {
+            final int id = c;
+            pool.execute(new Runnable() {
+                public void run() {
+                    // A ticket is taken before each consume so exactly max
+                    // elements are removed and no consumer is left waiting
+                    while (tickets.getAndDecrement() > 0) {
+                        try{
+                            q.consume();
+                            counts[id]++;
+                        } catch (KeeperException e){
+                            tickets.incrementAndGet();
+                        } catch (InterruptedException e){
+                            break;
+                        }
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        try{
+            done.await();
+        } catch (InterruptedException e){
+            return;
+        } finally {
+            pool.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long sum = 0;
+        double squares = 0;
+        int min = Integer.MAX_VALUE, maxCount = 0;
+        for (int n : counts) {
+            sum += n;
+            squares += (double) n * n;
+            min = Math.min(min, n);
+            maxCount = Math.max(maxCount, n);
+        }
+        System.out.println("Dequeued " + sum + " elements: " + rate((int) sum, elapsed) + " elements/s");
+        System.out.println("Per consumer: min " + min + ", max " + maxCount
+                + ", mean " + (double) sum / consumers);
+        // Jain's index: 1.0 when every consumer removed the same number
+        System.out.println("Fairness index: " + (squares == 0 ? 1.0 : sum * sum / (consumers * squares)));
+    }
+
+    /**
+     * Executor running each task on a new virtual thread, or on a cached
+     * pool of platform threads on JVMs without virtual threads.
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads not available, using platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Consumer scaling benchmark: for 1, 2, 4, ... up to args[3] threads,
+     * each thread drains args[2] elements from a queue of its own, and the
+     * aggregate dequeue rate is printed for every thread count.
+     */
+    public static void consumerScaling(String args[]) {
+        int count = Integer.parseInt(args[2]);
+        int maxThreads = Integer.parseInt(args[3]);
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++)
+            values[i] = 10 + i;
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            final Queue[] queues = new Queue[threads];
+            try{
+                for (int t = 0; t < threads; t++) {
+                    queues[t] = new Queue(args[1], "/cbench" + t);
+                    queues[t].produceBatch(values);
+                }
+            } catch (KeeperException e){
+                System.out.println(e.toString());
+                return;
+            } catch (InterruptedException e){
+                return;
+            }
+
+            final CountDownLatch done = new CountDownLatch(threads);
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final Queue q = queues[t];
+                final int n = count;
+                new Thread(new Runnable() {
+                    public void run() {
+                        for (int i = 0; i < n; i++) {
+                            try{
+                                q.consume();
+                            } catch (KeeperException e){
+                                i--;
+                            } catch (InterruptedException e){
+                                break;
+                            }
+                        }
+                        done.countDown();
+                    }
+                }).start();
+            }
+            try{
+                done.await();
+            } catch (InterruptedException e){
+                return;
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.println(threads + " consumer threads: "
+                    + rate(threads * count, elapsed) + " elements/s");
+        }
+    }
+
+    /**
+     * Lock handoff benchmark. args[2] is "seq" for predecessor watches or
+     * "root" for the naive pattern where every waiter watches root;
+     * args[3] optionally fixes the number of contenders, otherwise 10, 100
+     * and 1000 are run.
+     */
+    public static void lockTest(String args[]) {
+        boolean watchRoot = args[2].equals("root");
+        int[] sizes = args.length > 3 ? new int[] { Integer.parseInt(args[3]) }
+                : new int[] { 10, 100, 1000 };
+        for (int contenders : sizes)
+            lockRound(args[1], watchRoot, contenders);
+    }
+
+    static void lockRound(String address, boolean watchRoot, int contenders) {
+        final Lock[] locks = new Lock[contenders];
+        for (int c = 0; c < contenders; c++) {
+            locks[c] = new Lock(address, "/lbench");
+            locks[c].watchRoot = watchRoot;
+        }
+        // Time from a holder starting to release until the next holder
+        // is granted the lock
+        final long[] handoffs = new long[contenders];
+        final AtomicLong released = new AtomicLong();
+        final AtomicInteger order = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(contenders);
+        ExecutorService pool = newVirtualThreadExecutor();
 
+        for (int c = 0; c < contenders; c++) {
+            final Lock l = locks[c];
+            pool.execute(new Runnable() {
+                public void run() {
+                    try{
+                        start.await();
+                        l.lock();
+                        long granted = System.nanoTime();
+                        int k = order.getAndIncrement();
+                        if (k > 0) handoffs[k] = granted - released.get();
+                        released.set(System.nanoTime());
+                        l.unlock();
+                    } catch (KeeperException e){
+                        System.out.println(e.toString());
+                    } catch (InterruptedException e){
+
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        long requests = Lock.requests.get();
+        long begin = System.nanoTime();
+        start.countDown();
+        try{
+            done.await();
+        } catch (InterruptedException e){
+            return;
+        } finally {
+            pool.shutdown();
+        }
+        long elapsed = System.nanoTime() - begin;
+        requests = Lock.requests.get() - requests;
+
+        long[] sorted = Arrays.copyOfRange(handoffs, 1, Math.max(1, order.get()));
+        Arrays.sort(sorted);
+        long sum = 0;
+        for (long h : sorted)
+            sum += h;
+        System.out.println(contenders + " contenders, " + (watchRoot ? "root" : "predecessor")
+                + " watch: " + elapsed / 1000000 + " ms");
+        if (sorted.length > 0) {
+            System.out.println("  handoff mean " + sum / sorted.length / 1000 + " us, p99 "
+                    + sorted[(int) (sorted.length * 0.99)] / 1000 + " us");
+        }
+        System.out.println("  " + requests + " ZooKeeper requests, "
+                + rate((int) requests, elapsed) + " requests/s");
+    }
+
+    /**
+     * Barrier cycle benchmark: for 2, 4, ... up to args[2] workers, run
+     * args[3] enter/leave cycles, each on a fresh barrier, and print the
+     * mean cycle time.
+     */
+    public static void barrierTest(String args[]) {
+        final String address = args[1];
+        int maxWorkers = Integer.parseInt(args[2]);
+        final int cycles = Integer.parseInt(args[3]);
+
+        for (int w = 2; w <= maxWorkers; w *= 2) {
+            final int workers = w;
+            final CountDownLatch done = new CountDownLatch(workers);
+            ExecutorService pool = newVirtualThreadExecutor();
+            long start = System.nanoTime();
+            for (int k = 0; k < workers; k++) {
+                pool.execute(new Runnable() {
+                    public void run() {
+                        try{
+                            // Every cycle reuses the same root
+                            Barrier b = new Barrier(address, "/bbench" + workers, workers);
+                            for (int c = 0; c < cycles; c++) {
+                                b.enter();
+                                b.leave();
+                            }
+                        } catch (KeeperException e){
+                            System.out.println(e.toString());
+                        } catch (InterruptedException e){
+
+                        }
+                        done.countDown();
+                    }
+                });
+            }
+            try{
+                done.await();
+            } catch (InterruptedException e){
+                return;
+            } finally {
+                pool.shutdown();
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.println(workers + " workers: " + elapsed / cycles / 1000
+                    + " us per cycle");
+        }
+    }
+
+    /**
+     * Priority queue test: args[3] "p" produces args[2] elements with random
+     * priorities (0-9) and delays of up to 2 seconds, anything else
+     * consumes args[2] elements.
+     */
+    public static void priorityTest(String args[]) {
+        PriorityQueue q = new PriorityQueue(args[1], "/app2", 10);
+        int max = Integer.parseInt(args[2]);
+        Random random = new Random();
+
+        for (int i = 0; i < max; i++) {
+            try{
+                if (args[3].equals("p")) {
+                    q.produce(10 + i, random.nextInt(10), random.nextInt(2000));
+                } else {
+                    System.out.println("Item: " + q.consume());
+                }
+            } catch (KeeperException e){
+                i--;
+            } catch (InterruptedException e){
+
+            }
+        }
+    }
+
+    static long rate(int count, long nanos) {
+        return nanos == 0 ? 0 : count * 1000000000L / nanos;
+    }
+
+}
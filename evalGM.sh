@@ -1,7 +1,7 @@
 #!/bin/bash
 
 if [ "$#" = 0 ]; then
-	printf "Usage:\n* To start the ZooKeeper servers: ./evalGM.sh prepare #-of-servers\n* To stop the ZooKeeper servers: ./evalGM.sh stop #-of-servers\n* To start clients: ./evalGM.sh start conf-file #-of-clients #-of-servers\n* To create groups: ./evalGM.sh create groups-file #-of-servers\n* To list existing groups: ./evalGM.sh list #-of-servers\n* To remove all group members: ./evalGM.sh close #-of-servers\n" 
+	printf "Usage:\n* To start the ZooKeeper servers: ./evalGM.sh prepare #-of-servers\n* To stop the ZooKeeper servers: ./evalGM.sh stop #-of-servers\n* To start clients: ./evalGM.sh start conf-file #-of-clients #-of-servers\n* To create groups: ./evalGM.sh create groups-file #-of-servers\n* To list existing groups: ./evalGM.sh list #-of-servers\n* To remove all group members: ./evalGM.sh close #-of-servers\n* To benchmark the membership view: ./evalGM.sh members #-of-members #-of-servers\n* To benchmark shared sessions: ./evalGM.sh sessions #-of-members #-of-servers\n* To benchmark capacity-limited joins: ./evalGM.sh capacity #-of-joiners capacity #-of-servers\n* To generate membership load: ./evalGM.sh load #-of-members joins-per-second output-json #-of-servers (0 for in-process)\n* To measure watches and heap per member: ./evalGM.sh watches #-of-members #-of-servers\n* To compare cached payloads with IDs only: ./evalGM.sh payloads #-of-members #-of-servers\n* To benchmark the consistent-hash ring: ./evalGM.sh ring #-of-members #-of-servers\n* To compare flat and bucketed groups: ./evalGM.sh sharded #-of-members #-of-buckets #-of-servers\n* To measure leader failover: ./evalGM.sh election #-of-members #-of-servers\n* To measure cold start with a membership snapshot: ./evalGM.sh snapshot #-of-members #-of-servers\n* To compare blocking and asynchronous start: ./evalGM.sh startup #-of-members #-of-servers\n" 
 else
 if [ "$1" = "prepare" ] && [ "$#" = 2 ]; then
 	for i in `seq 1 "$2"`
@@ -46,7 +46,51 @@ else
 if [ "$1" = "close" ] && [ "$#" = 2 ]; then
 	mvn -f /home/iva/workspace/GroupMember/pom.xml clean install -Dexec.args="close "$2""
 else
-	printf "Usage:\n* To start the ZooKeeper servers: ./evalGM.sh prepare #-of-servers\n* To stop the ZooKeeper servers: ./evalGM.sh stop #-of-servers\n* To start clients: ./evalGM.sh start conf-file #-of-clients #-of-servers\n* To create groups: ./evalGM.sh create groups-file #-of-servers\n* To list existing groups: ./evalGM.sh list #-of-servers\n* To remove all group members: ./evalGM.sh close #-of-servers\n" 
+if [ "$1" = "members" ] && [ "$#" = 3 ]; then
+	mvn -f /home/iva/workspace/GroupMember/pom.xml clean install -Dexec.args="members "$2" "$3""
+else
+if [ "$1" = "sessions" ] && [ "$#" = 3 ]; then
+	mvn -f /home/iva/workspace/GroupMember/pom.xml clean install -Dexec.args="sessions "$2" "$3""
+else
+if [ "$1" = "capacity" ] && [ "$#" = 4 ]; then
+	mvn -f /home/iva/workspace/GroupMember/pom.xml clean install -Dexec.args="capacity "$2" "$3" "$4""
+else
+if [ "$1" = "load" ] && [ "$#" = 5 ]; then
+	mvn -f /home/iva/workspace/GroupMember/pom.xml clean install -Dexec.args="load "$2" "$3" "$4" "$5""
+else
+if [ "$1" = "watches" ] && [ "$#" = 3 ]; then
+	mvn -f /home/iva/workspace/GroupMember/pom.xml clean install -Dexec.args="watches "$2" "$3""
+else
+if [ "$1" = "payloads" ] && [ "$#" = 3 ]; then
+	mvn -f /home/iva/workspace/GroupMember/pom.xml clean install -Dexec.args="payloads "$2" "$3""
+else
+if [ "$1" = "ring" ] && [ "$#" = 3 ]; then
+	mvn -f /home/iva/workspace/GroupMember/pom.xml clean install -Dexec.args="ring "$2" "$3""
+else
+if [ "$1" = "sharded" ] && [ "$#" = 4 ]; then
+	mvn -f /home/iva/workspace/GroupMember/pom.xml clean install -Dexec.args="sharded "$2" "$3" "$4""
+else
+if [ "$1" = "election" ] && [ "$#" = 3 ]; then
+	mvn -f /home/iva/workspace/GroupMember/pom.xml clean install -Dexec.args="election "$2" "$3""
+else
+if [ "$1" = "snapshot" ] && [ "$#" = 3 ]; then
+	mvn -f /home/iva/workspace/GroupMember/pom.xml clean install -Dexec.args="snapshot "$2" "$3""
+else
+if [ "$1" = "startup" ] && [ "$#" = 3 ]; then
+	mvn -f /home/iva/workspace/GroupMember/pom.xml clean install -Dexec.args="startup "$2" "$3""
+else
+	printf "Usage:\n* To start the ZooKeeper servers: ./evalGM.sh prepare #-of-servers\n* To stop the ZooKeeper servers: ./evalGM.sh stop #-of-servers\n* To start clients: ./evalGM.sh start conf-file #-of-clients #-of-servers\n* To create groups: ./evalGM.sh create groups-file #-of-servers\n* To list existing groups: ./evalGM.sh list #-of-servers\n* To remove all group members: ./evalGM.sh close #-of-servers\n* To benchmark the membership view: ./evalGM.sh members #-of-members #-of-servers\n* To benchmark shared sessions: ./evalGM.sh sessions #-of-members #-of-servers\n* To benchmark capacity-limited joins: ./evalGM.sh capacity #-of-joiners capacity #-of-servers\n* To generate membership load: ./evalGM.sh load #-of-members joins-per-second output-json #-of-servers (0 for in-process)\n* To measure watches and heap per member: ./evalGM.sh watches #-of-members #-of-servers\n* To compare cached payloads with IDs only: ./evalGM.sh payloads #-of-members #-of-servers\n* To benchmark the consistent-hash ring: ./evalGM.sh ring #-of-members #-of-servers\n* To compare flat and bucketed groups: ./evalGM.sh sharded #-of-members #-of-buckets #-of-servers\n* To measure leader failover: ./evalGM.sh election #-of-members #-of-servers\n* To measure cold start with a membership snapshot: ./evalGM.sh snapshot #-of-members #-of-servers\n* To compare blocking and asynchronous start: ./evalGM.sh startup #-of-members #-of-servers\n" 
+fi
+fi
+fi
+fi
+fi
+fi
+fi
+fi
+fi
+fi
+fi
 fi
 fi
 fi